@@ -0,0 +1,33 @@
+package com.hmdp.config;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.scheduling.concurrent.ThreadPoolTaskExecutor;
+
+import java.util.concurrent.ThreadPoolExecutor;
+
+@Configuration
+public class AsyncConfig {
+
+    /**
+     * 缓存异步查询时执行数据库查询、获取互斥锁等阻塞操作的线程池
+     * 调用线程一般是lettuce的io线程，队列满时直接拒绝，不能在io线程中执行阻塞操作；
+     * 拒绝后逻辑过期的查询返回旧数据，缓存未命中的查询失败
+     */
+    @Bean
+    public ThreadPoolTaskExecutor cacheDbExecutor(@Value("${hmdp.cache.db-executor.core-size:16}") int coreSize,
+                                                  @Value("${hmdp.cache.db-executor.max-size:32}") int maxSize,
+                                                  @Value("${hmdp.cache.db-executor.queue-capacity:2000}") int queueCapacity) {
+        ThreadPoolTaskExecutor executor = new ThreadPoolTaskExecutor();
+        executor.setCorePoolSize(coreSize);
+        executor.setMaxPoolSize(maxSize);
+        executor.setQueueCapacity(queueCapacity);
+        executor.setThreadNamePrefix("cache-db-");
+        executor.setRejectedExecutionHandler(new ThreadPoolExecutor.AbortPolicy());
+        //关闭时等待正在执行的查询完成
+        executor.setWaitForTasksToCompleteOnShutdown(true);
+        executor.setAwaitTerminationSeconds(10);
+        return executor;
+    }
+}
@@ -0,0 +1,56 @@
+package com.hmdp.config;
+
+import com.hmdp.utils.OrderPartitions;
+import org.springframework.amqp.core.*;
+import org.springframework.amqp.rabbit.config.SimpleRabbitListenerContainerFactory;
+import org.springframework.amqp.rabbit.connection.ConnectionFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.amqp.SimpleRabbitListenerContainerFactoryConfigurer;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+
+import java.util.ArrayList;
+import java.util.List;
+
+@Configuration
+public class RabbitConfig {
+
+    /**
+     * 订单分区的交换机和队列，路由键为分区号，以及保存无法处理的订单消息的死信队列
+     * 死信队列由消费者直接发送，不通过队列参数配置，已经存在的分区队列不用重新声明
+     * 队列开启single active consumer，多个节点同时监听时每个分区同一时刻只有一个消费者，保证分区内按顺序消费
+     */
+    @Bean
+    public Declarables orderPartitionDeclarables(OrderPartitions orderPartitions) {
+        DirectExchange exchange = new DirectExchange(OrderPartitions.EXCHANGE);
+        List<Declarable> declarables = new ArrayList<>();
+        declarables.add(exchange);
+        for (int i = 0; i < orderPartitions.count(); i++) {
+            Queue queue = QueueBuilder.durable(OrderPartitions.queueName(i)).singleActiveConsumer().build();
+            declarables.add(queue);
+            declarables.add(BindingBuilder.bind(queue).to(exchange).with(String.valueOf(i)));
+        }
+        declarables.add(QueueBuilder.durable(OrderPartitions.DEAD_LETTER_QUEUE).build());
+        return new Declarables(declarables);
+    }
+
+    /**
+     * 批量消费订单消息的容器：攒够batch-size条消息，或者等待下一条消息超过timeout-millis时，把已经收到的消息一起交给监听方法
+     * 手动确认，监听方法在事务提交后才确认；预取数量不能小于批量大小，否则一批永远攒不满
+     */
+    @Bean
+    public SimpleRabbitListenerContainerFactory batchContainerFactory(SimpleRabbitListenerContainerFactoryConfigurer configurer,
+                                                                      ConnectionFactory connectionFactory,
+                                                                      @Value("${hmdp.order.batch.size:100}") int batchSize,
+                                                                      @Value("${hmdp.order.batch.timeout-millis:50}") long timeoutMillis) {
+        SimpleRabbitListenerContainerFactory factory = new SimpleRabbitListenerContainerFactory();
+        configurer.configure(factory, connectionFactory);
+        factory.setBatchListener(true);
+        factory.setConsumerBatchEnabled(true);
+        factory.setBatchSize(batchSize);
+        factory.setReceiveTimeout(timeoutMillis);
+        factory.setPrefetchCount(Math.max(batchSize, 250));
+        factory.setAcknowledgeMode(AcknowledgeMode.MANUAL);
+        return factory;
+    }
+}
@@ -0,0 +1,76 @@
+package com.hmdp.config;
+
+import com.hmdp.utils.CacheBloomFilters;
+import com.hmdp.utils.CacheInvalidationListener;
+import com.hmdp.utils.OrderStatusStore;
+import com.hmdp.utils.SeckillRateLimiter;
+import com.hmdp.utils.SoldOutFlags;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.data.redis.connection.ReactiveRedisConnectionFactory;
+import org.springframework.data.redis.connection.RedisConnectionFactory;
+import org.springframework.data.redis.core.ReactiveRedisTemplate;
+import org.springframework.data.redis.core.RedisTemplate;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+import org.springframework.data.redis.serializer.RedisSerializationContext;
+import org.springframework.data.redis.serializer.RedisSerializer;
+
+import static com.hmdp.utils.RedisConstants.BLOOM_ADD_CHANNEL;
+import static com.hmdp.utils.RedisConstants.CACHE_INVALIDATE_CHANNEL;
+import static com.hmdp.utils.RedisConstants.ORDER_STATUS_CHANNEL;
+import static com.hmdp.utils.RedisConstants.SECKILL_LIMIT_CHANNEL;
+import static com.hmdp.utils.RedisConstants.SECKILL_SOLD_OUT_CHANNEL;
+
+@Configuration
+public class RedisConfig {
+
+    /**
+     * redis的发布订阅容器，用于在节点之间广播消息
+     */
+    @Bean
+    public RedisMessageListenerContainer redisMessageListenerContainer(RedisConnectionFactory connectionFactory,
+                                                                       CacheInvalidationListener cacheInvalidationListener,
+                                                                       CacheBloomFilters cacheBloomFilters,
+                                                                       SoldOutFlags soldOutFlags,
+                                                                       SeckillRateLimiter seckillRateLimiter,
+                                                                       OrderStatusStore orderStatusStore) {
+        RedisMessageListenerContainer container = new RedisMessageListenerContainer();
+        container.setConnectionFactory(connectionFactory);
+        //订阅一级缓存失效的频道
+        container.addMessageListener(cacheInvalidationListener, new ChannelTopic(CACHE_INVALIDATE_CHANNEL));
+        //订阅布隆过滤器新增id的频道
+        container.addMessageListener(cacheBloomFilters, new ChannelTopic(BLOOM_ADD_CHANNEL));
+        //订阅秒杀券售罄标记的频道
+        container.addMessageListener(soldOutFlags, new ChannelTopic(SECKILL_SOLD_OUT_CHANNEL));
+        //订阅秒杀券限流配置修改的频道
+        container.addMessageListener(seckillRateLimiter, new ChannelTopic(SECKILL_LIMIT_CHANNEL));
+        //订阅订单处理完成的频道，推送给本节点的SSE连接
+        container.addMessageListener(orderStatusStore, new ChannelTopic(ORDER_STATUS_CHANNEL));
+        return container;
+    }
+
+    /**
+     * 缓存使用的redisTemplate，value直接读写字节，由CacheSerializer负责编码
+     */
+    @Bean
+    public RedisTemplate<String, byte[]> cacheRedisTemplate(RedisConnectionFactory connectionFactory) {
+        RedisTemplate<String, byte[]> template = new RedisTemplate<>();
+        template.setConnectionFactory(connectionFactory);
+        template.setKeySerializer(RedisSerializer.string());
+        template.setValueSerializer(RedisSerializer.byteArray());
+        return template;
+    }
+
+    /**
+     * 缓存异步查询使用的reactiveRedisTemplate，底层是lettuce的异步连接，序列化方式和cacheRedisTemplate一致
+     */
+    @Bean
+    public ReactiveRedisTemplate<String, byte[]> reactiveCacheRedisTemplate(ReactiveRedisConnectionFactory connectionFactory) {
+        RedisSerializationContext<String, byte[]> context = RedisSerializationContext
+                .<String, byte[]>newSerializationContext(RedisSerializer.string())
+                .value(RedisSerializer.byteArray())
+                .build();
+        return new ReactiveRedisTemplate<>(connectionFactory, context);
+    }
+}
@@ -2,17 +2,35 @@ package com.hmdp.config;
 
 import org.redisson.Redisson;
 import org.redisson.api.RedissonClient;
+import org.redisson.config.ClusterServersConfig;
 import org.redisson.config.Config;
+import org.springframework.boot.autoconfigure.data.redis.RedisProperties;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
 
 @Configuration
 public class RedissonConfig {
+
+    /**
+     * 和lettuce使用同一份spring.redis配置：配置了spring.redis.cluster.nodes时使用集群模式，否则连接单个节点
+     */
     @Bean
-    public RedissonClient redissonClient(){
+    public RedissonClient redissonClient(RedisProperties redisProperties){
         //配置
         Config config = new Config();
-        config.useSingleServer().setAddress("redis://192.168.88.151:6379").setPassword("123321");
+        RedisProperties.Cluster cluster = redisProperties.getCluster();
+        if (cluster != null && cluster.getNodes() != null && !cluster.getNodes().isEmpty()) {
+            ClusterServersConfig clusterConfig = config.useClusterServers()
+                    .setPassword(redisProperties.getPassword());
+            for (String node : cluster.getNodes()) {
+                clusterConfig.addNodeAddress("redis://" + node);
+            }
+        } else {
+            config.useSingleServer()
+                    .setAddress("redis://" + redisProperties.getHost() + ":" + redisProperties.getPort())
+                    .setPassword(redisProperties.getPassword())
+                    .setDatabase(redisProperties.getDatabase());
+        }
 
         //创建redissonClient对象
         return Redisson.create(config);
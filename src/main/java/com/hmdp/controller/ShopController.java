@@ -6,10 +6,13 @@ import com.baomidou.mybatisplus.extension.plugins.pagination.Page;
 import com.hmdp.dto.Result;
 import com.hmdp.entity.Shop;
 import com.hmdp.service.IShopService;
+import com.hmdp.utils.CacheBloomFilters;
+import com.hmdp.utils.ShopCacheWarmer;
 import com.hmdp.utils.SystemConstants;
 import org.springframework.web.bind.annotation.*;
 
 import javax.annotation.Resource;
+import java.util.concurrent.CompletableFuture;
 
 /**
  * <p>
@@ -26,14 +29,20 @@ public class ShopController {
     @Resource
     public IShopService shopService;
 
+    @Resource
+    private CacheBloomFilters cacheBloomFilters;
+
+    @Resource
+    private ShopCacheWarmer shopCacheWarmer;
+
     /**
      * 根据id查询商铺信息
      * @param id 商铺id
-     * @return 商铺详情数据
+     * @return 商铺详情数据，查询完成前释放servlet线程
      */
     @GetMapping("/{id}")
-    public Result queryShopById(@PathVariable("id") Long id) {
-        return shopService.queryById(id);
+    public CompletableFuture<Result> queryShopById(@PathVariable("id") Long id) {
+        return shopService.queryByIdAsync(id);
     }
 
     /**
@@ -45,6 +54,8 @@ public class ShopController {
     public Result saveShop(@RequestBody Shop shop) {
         // 写入数据库
         shopService.save(shop);
+        // 写入布隆过滤器，否则新店铺会被当成不存在的id拦截
+        cacheBloomFilters.putShop(shop.getId());
         // 返回店铺id
         return Result.ok(shop.getId());
     }
@@ -96,4 +107,25 @@ public class ShopController {
         // 返回数据
         return Result.ok(page.getRecords());
     }
+
+    /**
+     * 手动触发店铺缓存预热，在后台执行
+     * @return 无
+     */
+    @PostMapping("/warm-up")
+    public Result warmUp() {
+        if (!shopCacheWarmer.warmUpAsync()) {
+            return Result.fail("正在预热中");
+        }
+        return Result.ok();
+    }
+
+    /**
+     * 查询店铺缓存预热的进度
+     * @return 已写入的店铺数和速度
+     */
+    @GetMapping("/warm-up")
+    public Result warmUpProgress() {
+        return Result.ok(shopCacheWarmer.progress());
+    }
 }
@@ -45,6 +45,36 @@ public class VoucherController {
         return Result.ok(voucher.getId());
     }
 
+    /**
+     * 补充秒杀券库存
+     * @param voucherId 优惠券id
+     * @param count 增加的库存数量
+     * @return 无
+     */
+    @PostMapping("seckill/{id}/stock")
+    public Result addSeckillStock(@PathVariable("id") Long voucherId, @RequestParam("count") Integer count) {
+        if (count == null || count <= 0) {
+            return Result.fail("库存数量必须大于0");
+        }
+        voucherService.addSeckillStock(voucherId, count);
+        return Result.ok();
+    }
+
+    /**
+     * 修改秒杀券的限流速率，运行时生效
+     * @param voucherId 优惠券id
+     * @param qps 全局每秒放行的请求数，小于等于0不限流
+     * @param localQps 每个节点每秒放行的请求数，小于等于0不限流
+     * @return 无
+     */
+    @PostMapping("seckill/{id}/limit")
+    public Result setSeckillLimit(@PathVariable("id") Long voucherId,
+                                  @RequestParam("qps") Integer qps,
+                                  @RequestParam(value = "localQps", defaultValue = "0") Integer localQps) {
+        voucherService.setSeckillLimit(voucherId, qps, localQps);
+        return Result.ok();
+    }
+
     /**
      * 查询店铺的优惠券列表
      * @param shopId 店铺id
@@ -4,12 +4,18 @@ package com.hmdp.controller;
 import com.hmdp.dto.Result;
 import com.hmdp.service.IVoucherOrderService;
 import com.hmdp.service.IVoucherService;
+import com.hmdp.utils.OrderStatusStore;
+import com.hmdp.utils.UserHolder;
+import org.springframework.http.MediaType;
+import org.springframework.web.bind.annotation.GetMapping;
 import org.springframework.web.bind.annotation.PathVariable;
 import org.springframework.web.bind.annotation.PostMapping;
 import org.springframework.web.bind.annotation.RequestMapping;
 import org.springframework.web.bind.annotation.RestController;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
 
 import javax.annotation.Resource;
+import java.util.Map;
 
 /**
  * <p>
@@ -25,8 +31,33 @@ public class VoucherOrderController {
 
     @Resource
     private IVoucherOrderService voucherOrderService;
+    @Resource
+    private OrderStatusStore orderStatusStore;
     @PostMapping("seckill/{id}")
     public Result seckillVoucher(@PathVariable("id") Long voucherId) {
         return voucherOrderService.seckillVoucher(voucherId);
     }
+
+    /**
+     * 查询秒杀订单的处理状态，只读redis
+     * @param orderId 订单id
+     * @return pending：等待保存，succeeded：已保存，failed：保存失败
+     */
+    @GetMapping("status/{orderId}")
+    public Result queryOrderStatus(@PathVariable("orderId") Long orderId) {
+        Map<String, Object> status = orderStatusStore.get(orderId, UserHolder.getUser().getId());
+        if (status == null) {
+            return Result.fail("订单状态不存在或已过期");
+        }
+        return Result.ok(status);
+    }
+
+    /**
+     * 订阅当前用户的订单处理结果，订单保存成功或失败时推送order事件
+     * @return SSE连接
+     */
+    @GetMapping(value = "events", produces = MediaType.TEXT_EVENT_STREAM_VALUE)
+    public SseEmitter orderEvents() {
+        return orderStatusStore.subscribe(UserHolder.getUser().getId());
+    }
 }
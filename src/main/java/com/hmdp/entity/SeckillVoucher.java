@@ -37,6 +37,11 @@ public class SeckillVoucher implements Serializable {
      */
     private Integer stock;
 
+    /**
+     * redis中库存拆分的分片数
+     */
+    private Integer stockShards;
+
     /**
      * 创建时间
      */
@@ -3,6 +3,8 @@ package com.hmdp.mapper;
 import com.hmdp.entity.SeckillVoucher;
 import com.baomidou.mybatisplus.core.mapper.BaseMapper;
 
+import java.util.Map;
+
 /**
  * <p>
  * 秒杀优惠券表，与优惠券是一对一关系 Mapper 接口
@@ -13,4 +15,10 @@ import com.baomidou.mybatisplus.core.mapper.BaseMapper;
  */
 public interface SeckillVoucherMapper extends BaseMapper<SeckillVoucher> {
 
+    /**
+     * 秒杀券的库存和没有取消的订单数，对账时两者之和应该等于redis中的库存加已下单的用户数
+     * @return stock：库存，orders：订单数；秒杀券不存在时返回null
+     */
+    Map<String, Object> selectStockAndOrders(Long voucherId);
+
 }
@@ -2,6 +2,9 @@ package com.hmdp.mapper;
 
 import com.hmdp.entity.VoucherOrder;
 import com.baomidou.mybatisplus.core.mapper.BaseMapper;
+import org.apache.ibatis.annotations.Param;
+
+import java.util.List;
 
 /**
  * <p>
@@ -13,4 +16,11 @@ import com.baomidou.mybatisplus.core.mapper.BaseMapper;
  */
 public interface VoucherOrderMapper extends BaseMapper<VoucherOrder> {
 
+    /**
+     * 一条多行INSERT保存一批订单，主键或者唯一索引(user_id, voucher_id, cancel_id)冲突的订单被跳过
+     * 用ON DUPLICATE KEY UPDATE而不是INSERT IGNORE，其他数据错误不会被静默忽略
+     * @return 实际插入的行数，需要连接开启useAffectedRows，否则冲突的行也计为1
+     */
+    int insertSkipDuplicates(@Param("orders") List<VoucherOrder> orders);
+
 }
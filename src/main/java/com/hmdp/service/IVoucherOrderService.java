@@ -4,6 +4,8 @@ import com.hmdp.dto.Result;
 import com.hmdp.entity.VoucherOrder;
 import com.baomidou.mybatisplus.extension.service.IService;
 
+import java.util.List;
+
 /**
  * <p>
  *  服务类
@@ -16,5 +18,21 @@ public interface IVoucherOrderService extends IService<VoucherOrder> {
 
     Result seckillVoucher(Long voucherId);
 
-    void creatVoucherOrder(VoucherOrder voucherOrder);
+    /**
+     * 保存一个订单
+     * @return 库存不足或者用户已经有其他订单、这个订单没有保存时返回false
+     */
+    boolean creatVoucherOrder(VoucherOrder voucherOrder);
+
+    /**
+     * 在一个事务中保存一批订单，已经下过单的用户被唯一索引忽略
+     * @return 数据库中存在的订单，包括这次插入的和重复投递时以前已经插入的
+     */
+    List<VoucherOrder> createVoucherOrders(List<VoucherOrder> voucherOrders);
+
+    /**
+     * 取消超时未支付的订单并恢复数据库中的库存
+     * @return 订单已经支付、已经取消或者不存在时返回false
+     */
+    boolean cancelTimeoutOrder(Long orderId, Long voucherId);
 }
@@ -19,5 +19,9 @@ public interface IVoucherService extends IService<Voucher> {
 
     void addSeckillVoucher(Voucher voucher);
 
+    void addSeckillStock(Long voucherId, Integer count);
+
+    void setSeckillLimit(Long voucherId, Integer qps, Integer localQps);
+
     //Result createVoucherOrder(VoucherOrder voucherOrder);
 }
@@ -6,23 +6,27 @@ import com.hmdp.mapper.VoucherOrderMapper;
 import com.hmdp.service.ISeckillVoucherService;
 import com.hmdp.service.IVoucherOrderService;
 import com.baomidou.mybatisplus.extension.service.impl.ServiceImpl;
+import com.hmdp.utils.OrderPublisher;
+import com.hmdp.utils.OrderStatusStore;
 import com.hmdp.utils.RedisIdWorker;
+import com.hmdp.utils.SeckillRateLimiter;
+import com.hmdp.utils.SeckillStockShards;
+import com.hmdp.utils.SeckillWindows;
+import com.hmdp.utils.SoldOutFlags;
 import com.hmdp.utils.UserHolder;
 import lombok.extern.slf4j.Slf4j;
-import org.redisson.api.RLock;
-import org.redisson.api.RedissonClient;
-import org.springframework.amqp.rabbit.core.RabbitTemplate;
-import org.springframework.aop.framework.AopContext;
 import org.springframework.core.io.ClassPathResource;
 import org.springframework.data.redis.core.StringRedisTemplate;
 import org.springframework.data.redis.core.script.DefaultRedisScript;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
+import org.springframework.transaction.interceptor.TransactionAspectSupport;
 
 import javax.annotation.PostConstruct;
 import javax.annotation.Resource;
-import java.util.Collections;
-import java.util.concurrent.*;
+import java.time.LocalDateTime;
+import java.util.*;
+import java.util.stream.Collectors;
 
 /**
  * <p>
@@ -36,19 +40,33 @@ import java.util.concurrent.*;
 @Slf4j
 public class VoucherOrderServiceImpl extends ServiceImpl<VoucherOrderMapper, VoucherOrder> implements IVoucherOrderService {
 
-    @Resource
-    private RabbitTemplate rabbitTemplate;
     //调用秒杀券查询
     @Resource
     private ISeckillVoucherService seckillVoucherService;
 
     @Resource
     private StringRedisTemplate stringRedisTemplate;
-    @Resource
-    private RedissonClient redissonClient;
     //注入id生成器
     @Resource
     private RedisIdWorker redisIdWorker;
+    //本地的售罄标记
+    @Resource
+    private SoldOutFlags soldOutFlags;
+    //库存分片
+    @Resource
+    private SeckillStockShards seckillStockShards;
+    //发送订单消息
+    @Resource
+    private OrderPublisher orderPublisher;
+    //秒杀限流
+    @Resource
+    private SeckillRateLimiter seckillRateLimiter;
+    //抢购时间
+    @Resource
+    private SeckillWindows seckillWindows;
+    //订单状态
+    @Resource
+    private OrderStatusStore orderStatusStore;
 
     //初始化lua脚本，使用静态代码块在类加载之前执行，只执行一遍，就不用每次释放锁时加载一遍，性能提升
     private static final DefaultRedisScript<Long> SECKILL_SCRIPT;
@@ -59,32 +77,6 @@ public class VoucherOrderServiceImpl extends ServiceImpl<VoucherOrderMapper, Vou
         SECKILL_SCRIPT.setResultType(Long.class);
     }
 
-    //由于子线程中不能获取ThreadLocal，所以要把代理对象设置成全局变量，在主线程中获取代理对象
-    private IVoucherOrderService proxy;
-
-    //阻塞队列
-    private BlockingQueue<VoucherOrder> orderTasks = new ArrayBlockingQueue<>(1024 * 1024);
-
-    //线程池,单线程进行
-    private static final ExecutorService SECKILL_ORDER_EXECUTOR = Executors.newSingleThreadExecutor();
-
-    public void handlerVoucherOrder(VoucherOrder voucherOrder) {
-        //获取用户id
-        Long userId = voucherOrder.getUserId();
-        //创建锁对象
-        RLock lock = redissonClient.getLock("lock:order:" + userId);
-        //获取锁
-        boolean isLock = lock.tryLock();
-        //判断获取锁是否成功
-        if(!isLock){
-            //获取锁失败
-            log.error("不允许重复下单");
-            return;
-        }
-        creatVoucherOrder(voucherOrder);
-    }
-
-
 
     /**
      * 用户抢购秒杀券，将秒杀券订单信息保存到数据库中
@@ -95,15 +87,40 @@ public class VoucherOrderServiceImpl extends ServiceImpl<VoucherOrderMapper, Vou
     public Result seckillVoucher(Long voucherId) {
         //获取用户
         Long userId = UserHolder.getUser().getId();
-        //1.执行lua脚本，查看有没有购买资格
-        Long result = stringRedisTemplate.execute(
-                SECKILL_SCRIPT, Collections.emptyList(), voucherId.toString(), userId.toString()
-        );
-
-        int r = result.intValue();
+        //0.本地判断抢购时间和售罄，不用访问redis
+        int window = seckillWindows.check(voucherId);
+        if(window != 0){
+            return Result.fail(failMessage(window));
+        }
+        if(soldOutFlags.isSoldOut(voucherId)){
+            return Result.fail("库存不足");
+        }
+        //超过本节点或者全局的速率，直接让用户重试，不执行lua脚本
+        if(!seckillRateLimiter.tryAcquire(voucherId)){
+            return Result.fail("抢购人数过多，请稍后重试");
+        }
+        //1.执行lua脚本，查看有没有购买资格，库存拆分成多个分片的在用户所属的分片上抢购
+        int r;
+        int shards = seckillStockShards.shardCount(voucherId);
+        if(shards > 1){
+            r = seckillStockShards.tryAcquire(voucherId, userId, shards);
+        }else {
+            //所有key通过KEYS传入，使用相同的hash tag，集群中在同一个slot
+            Long result = stringRedisTemplate.execute(
+                    SECKILL_SCRIPT,
+                    Arrays.asList(SeckillStockShards.stockKey(voucherId), SeckillStockShards.orderKey(voucherId),
+                            SeckillWindows.windowKey(voucherId)),
+                    userId.toString()
+            );
+            r = result.intValue();
+        }
+        if(r == 1){
+            //库存不足，标记售罄并通知所有节点
+            soldOutFlags.markSoldOut(voucherId);
+        }
         if(r != 0){
             //没有购买资格
-            return Result.fail(r == 1 ? "库存不足" : "不能重复下单");
+            return Result.fail(failMessage(r));
         }
         //判断结果为0
 
@@ -116,47 +133,126 @@ public class VoucherOrderServiceImpl extends ServiceImpl<VoucherOrderMapper, Vou
 
         //代金券id
         voucherOrder.setVoucherId(voucherId);
+        //下单时间，消费者用来统计从下单到保存的延迟
+        voucherOrder.setCreateTime(LocalDateTime.now());
 
-        //将订单消息放入RabbitMQ队列
-        String queueName = "test.queues";
-        // 发送消息
-        rabbitTemplate.convertAndSend(queueName, voucherOrder);
+        //写入订单状态，客户端轮询或者通过SSE等待保存结果
+        orderStatusStore.pending(voucherOrder);
+        //将订单消息按优惠券id发送到对应分区的队列，消息队列不可用时写入本地日志
+        orderPublisher.publish(voucherOrder);
 
         return Result.ok(orderId);
     }
 
     /**
-     * 在一人一单时查询不能使用乐观锁（乐观锁通过比较数据上锁，要修改数据才能比较数据，这里比较不了），只能加悲观锁
+     * 秒杀脚本返回值对应的提示
+     */
+    private static String failMessage(int r) {
+        switch (r) {
+            case 1:
+                return "库存不足";
+            case 2:
+                return "不能重复下单";
+            case SeckillWindows.NOT_STARTED:
+                return "秒杀尚未开始";
+            case SeckillWindows.ENDED:
+                return "秒杀已经结束";
+            default:
+                return "秒杀失败";
+        }
+    }
+
+    /**
+     * 保存一个订单：先插入并跳过唯一索引冲突，唯一索引(user_id, voucher_id)保证一人一单，重复投递的消息插入0行直接返回
+     * 插入0行时只有这个订单已经存在才算保存成功，用户已经有其他id的订单时返回false
+     * 插入成功后再带条件扣减库存，扣减失败时回滚插入；扣减放在最后，秒杀券这一行的行锁持有到提交的时间最短
+     * 不需要分布式锁，也不需要先查询订单是否存在
      *
      * @param voucherOrder
      */
+    @Override
     @Transactional
-    //public synchronized Result creatVoucherOrder(Long voucherId) {//这里加锁范围过大，只需针对用户id加锁即可
-    public void creatVoucherOrder(VoucherOrder voucherOrder) {
-        //一人一单,获取用户id
-        Long userId = voucherOrder.getUserId();
-
-        //给用户加锁,用户id值一样的加一把锁，注意，每次来的对象都是不一样的，toString的底层也是不一样，所以要用intern方法
-        //这个锁的意思是锁定这个用户，下面这段函数没执行完下一个相同id的请求不能加入下段代码，而其他不同id的用户可以进来，当这段代码执行完后才能释放锁，下一次这个用户id才可以进来。
-       // synchronized (userId.toString().intern()) {//用于这里加了事务，事务在锁释放后提交，这时还没有写入数据库，如果在事务提交前锁释放后这个时间段有其他线程进来，依然会出现并发问题。所以锁不能放在这里
-            query().eq("user_id", userId).eq("voucher_id", voucherOrder.getVoucherId()).count();
-            //判断该用户订单是否已经存在，即该用户是否购买过该优惠券
-            if (count() > 0) {
-                //已经购买过了
-                log.error("用户已经购买过了");
-                return ;
-            }
+    public boolean creatVoucherOrder(VoucherOrder voucherOrder) {
+        if (voucherOrder.getCreateTime() == null) {
+            voucherOrder.setCreateTime(LocalDateTime.now());
+        }
+        //1.保存订单，用户已经购买过时忽略；重复投递的订单已经存在，用户的其他订单存在时这个订单没有保存
+        if (getBaseMapper().insertSkipDuplicates(Collections.singletonList(voucherOrder)) == 0) {
+            log.error("用户已经购买过了，订单:{}", voucherOrder.getId());
+            return query().eq("id", voucherOrder.getId()).count() > 0;
+        }
+        //2.扣减库存
+        boolean success = seckillVoucherService.update()
+                .setSql("stock = stock - 1")
+                .eq("voucher_id", voucherOrder.getVoucherId()).gt("stock", 0).update();
+        if (!success) {
+            log.error("库存不足，丢弃订单:{}", voucherOrder.getId());
+            TransactionAspectSupport.currentTransactionStatus().setRollbackOnly();
+            return false;
+        }
+        return true;
+    }
 
-            //5.库存充足，扣减库存
-            boolean success = seckillVoucherService.update()
-                    .setSql("stock = stock - 1")//set stock = stock - 1
-                    .eq("voucher_id", voucherOrder.getVoucherId()).gt("stock", 0).update();//where id = ? and stock = ?
-            //判断扣减是否成功
-            if (!success) {
-                log.error("库存不足");
-                return ;
+    /**
+     * 批量保存订单：每张券一条跳过唯一索引冲突的多行INSERT，插入的行数就是这张券要扣减的库存，再用一条带条件的UPDATE扣减
+     * 批内重复和已经保存过的订单都被唯一索引忽略；某张券的库存不够扣减时（redis和数据库的库存不一致）整批回滚，
+     * 由调用方拆分重试，最终只丢弃扣不到库存的订单
+     * 返回数据库中存在的订单：这次插入的，和重复投递时以前已经插入的；用户已经有其他订单而被忽略的不返回
+     */
+    @Override
+    @Transactional
+    public List<VoucherOrder> createVoucherOrders(List<VoucherOrder> voucherOrders) {
+        LocalDateTime now = LocalDateTime.now();
+        voucherOrders.stream().filter(order -> order.getCreateTime() == null).forEach(order -> order.setCreateTime(now));
+        Map<Long, List<VoucherOrder>> byVoucher = voucherOrders.stream()
+                .collect(Collectors.groupingBy(VoucherOrder::getVoucherId, LinkedHashMap::new, Collectors.toList()));
+        List<VoucherOrder> saved = new ArrayList<>(voucherOrders.size());
+        byVoucher.forEach((voucherId, orders) -> {
+            int inserted = getBaseMapper().insertSkipDuplicates(orders);
+            if (inserted > 0) {
+                boolean success = seckillVoucherService.update()
+                        .setSql("stock = stock - " + inserted)
+                        .eq("voucher_id", voucherId).ge("stock", inserted).update();
+                if (!success) {
+                    throw new IllegalStateException("秒杀券" + voucherId + "库存不足，无法保存" + inserted + "个订单");
+                }
+            }
+            if (inserted == orders.size()) {
+                saved.addAll(orders);
+                return;
+            }
+            //有被忽略的订单，按id查出数据库中存在的订单
+            Set<Long> existing = query().select("id")
+                    .in("id", orders.stream().map(VoucherOrder::getId).collect(Collectors.toList()))
+                    .list().stream().map(VoucherOrder::getId).collect(Collectors.toSet());
+            for (VoucherOrder order : orders) {
+                if (existing.contains(order.getId())) {
+                    saved.add(order);
+                }
             }
-            //7.保存订单
-            save(voucherOrder);
+            log.error("{}个订单的用户已经购买过了", orders.size() - inserted);
+        });
+        return saved;
+    }
+
+    /**
+     * 超时取消：带条件把未支付的订单改为已取消，改成功的才恢复库存，多个节点重复取消时只有一个能改成功
+     * 取消后cancel_id改为订单id，唯一索引(user_id, voucher_id, cancel_id)不再包含这个订单，用户可以重新抢购
+     */
+    @Override
+    @Transactional
+    public boolean cancelTimeoutOrder(Long orderId, Long voucherId) {
+        //1.取消订单
+        boolean cancelled = update()
+                .setSql("status = 4, cancel_id = id")
+                .eq("id", orderId).eq("status", 1).update();
+        if (!cancelled) {
+            return false;
+        }
+        //2.恢复库存
+        seckillVoucherService.update()
+                .setSql("stock = stock + 1")
+                .eq("voucher_id", voucherId).update();
+        return true;
     }
 }
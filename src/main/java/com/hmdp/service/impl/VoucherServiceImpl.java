@@ -11,15 +11,21 @@ import com.hmdp.mapper.VoucherMapper;
 import com.hmdp.entity.SeckillVoucher;
 import com.hmdp.service.ISeckillVoucherService;
 import com.hmdp.service.IVoucherService;
+import com.hmdp.utils.SeckillRateLimiter;
+import com.hmdp.utils.SeckillStockShards;
+import com.hmdp.utils.SeckillWindows;
+import com.hmdp.utils.SoldOutFlags;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.data.redis.core.StringRedisTemplate;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
 
 import javax.annotation.Resource;
 import java.util.List;
 
 import static com.hmdp.utils.RedisConstants.CACHE_SHOP_TYPE;
-import static com.hmdp.utils.RedisConstants.SECKILL_STOCK_KEY;
 
 /**
  * <p>
@@ -36,6 +42,17 @@ public class VoucherServiceImpl extends ServiceImpl<VoucherMapper, Voucher> impl
     private ISeckillVoucherService seckillVoucherService;
     @Resource
     private StringRedisTemplate stringRedisTemplate;
+    @Resource
+    private SoldOutFlags soldOutFlags;
+    @Resource
+    private SeckillStockShards seckillStockShards;
+    @Resource
+    private SeckillRateLimiter seckillRateLimiter;
+    @Resource
+    private SeckillWindows seckillWindows;
+    //没有指定分片数时，秒杀库存拆分的分片数
+    @Value("${hmdp.seckill.stock-shards:1}")
+    private int defaultStockShards;
     @Override
     public Result queryVoucherOfShop(Long shopId) {
         // 查询优惠券信息
@@ -53,11 +70,64 @@ public class VoucherServiceImpl extends ServiceImpl<VoucherMapper, Voucher> impl
         SeckillVoucher seckillVoucher = new SeckillVoucher();
         seckillVoucher.setVoucherId(voucher.getId());
         seckillVoucher.setStock(voucher.getStock());
+        int shards = voucher.getStockShards() == null ? defaultStockShards : voucher.getStockShards();
+        seckillVoucher.setStockShards(shards);
         seckillVoucher.setBeginTime(voucher.getBeginTime());
         seckillVoucher.setEndTime(voucher.getEndTime());
         seckillVoucherService.save(seckillVoucher);
         //保存秒杀库存到Redis中,包括优惠券的id和库存，不需要配置有效期，因为优惠券过期后前端不会显示，自己手动去redis中删就可以了
-        stringRedisTemplate.opsForValue().set(SECKILL_STOCK_KEY + voucher.getId(),voucher.getStock().toString());
+        if (shards > 1) {
+            //库存平均分到各个分片
+            seckillStockShards.initStock(voucher.getId(), voucher.getStock(), shards);
+        } else {
+            stringRedisTemplate.opsForValue().set(SeckillStockShards.stockKey(voucher.getId()),voucher.getStock().toString());
+        }
+        //保存抢购时间，秒杀脚本和库存一起判断
+        seckillWindows.save(voucher.getId(), voucher.getBeginTime(), voucher.getEndTime(), shards);
+    }
+
+    /**
+     * 补充秒杀券库存，事务提交后再增加redis中的库存，并清除所有节点的售罄标记
+     * 提交前增加的话，事务回滚后redis中多出的库存会被卖出；提交后增加失败时由库存对账补上
+     * @param voucherId
+     * @param count 增加的库存数量
+     */
+    @Override
+    @Transactional
+    public void addSeckillStock(Long voucherId, Integer count) {
+        //连接返回实际修改的行数，增加0时也会返回0
+        if (count == null || count <= 0) {
+            throw new RuntimeException("补充的库存必须大于0");
+        }
+        boolean success = seckillVoucherService.update()
+                .setSql("stock = stock + " + count)
+                .eq("voucher_id", voucherId).update();
+        if (!success) {
+            throw new RuntimeException("秒杀券不存在");
+        }
+        TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+            @Override
+            public void afterCommit() {
+                int shards = seckillStockShards.shardCount(voucherId);
+                if (shards > 1) {
+                    seckillStockShards.addStock(voucherId, count, shards);
+                } else {
+                    stringRedisTemplate.opsForValue().increment(SeckillStockShards.stockKey(voucherId), count);
+                }
+                soldOutFlags.clear(voucherId);
+            }
+        });
+    }
+
+    /**
+     * 修改秒杀券的限流速率，所有节点立即生效
+     * @param voucherId
+     * @param qps 全局的速率
+     * @param localQps 每个节点的速率
+     */
+    @Override
+    public void setSeckillLimit(Long voucherId, Integer qps, Integer localQps) {
+        seckillRateLimiter.setLimit(voucherId, qps, localQps);
     }
 
 }
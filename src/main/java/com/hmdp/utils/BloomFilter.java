@@ -0,0 +1,235 @@
+package com.hmdp.utils;
+
+import cn.hutool.core.lang.hash.MurmurHash;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.RedisTemplate;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import static com.hmdp.utils.RedisConstants.BLOOM_KEY;
+
+/**
+ * 布隆过滤器，判断一定不存在的id直接拦截，不用再查redis和数据库
+ * 本地保存一份位数组用于判断，不访问redis；同时把位数组保存到redis的bitmap中，所有节点共享
+ * 本地位数组按高位在前排列，按大端序转成字节后和redis中bitmap的布局完全一致
+ */
+public class BloomFilter {
+
+    private final String name;
+    private final String redisKey;
+    //位数组的长度，是64的整数倍
+    private final long numBits;
+    //哈希函数的个数
+    private final int numHashFunctions;
+
+    private final RedisTemplate<String, byte[]> redisTemplate;
+
+    private volatile AtomicLongArray bits;
+    //重建期间新增的id同时写入正在重建的位数组，避免重建完成后丢失
+    private volatile AtomicLongArray building;
+    //已写入的元素个数，用于估算误判率
+    private final AtomicLong insertions = new AtomicLong();
+    //还没从redis加载或重建完成之前，所有id都放行，避免把存在的数据拦截掉
+    private volatile boolean ready;
+
+    public BloomFilter(String name, long expectedInsertions, double fpp, RedisTemplate<String, byte[]> redisTemplate) {
+        this.name = name;
+        //带hash tag，集群中和重建用的临时key在同一个slot，才能RENAME
+        this.redisKey = BLOOM_KEY + "{" + name + "}";
+        this.redisTemplate = redisTemplate;
+        //m = -n*ln(p)/(ln2)^2，k = m/n*ln2
+        long m = (long) (-expectedInsertions * Math.log(fpp) / (Math.log(2) * Math.log(2)));
+        this.numBits = Math.max(64, (m + 63) / 64 * 64);
+        this.numHashFunctions = Math.max(1, (int) Math.round((double) numBits / expectedInsertions * Math.log(2)));
+        this.bits = new AtomicLongArray((int) (numBits / 64));
+    }
+
+    /**
+     * 判断id是否可能存在，返回false时一定不存在
+     */
+    public boolean mightContain(Object id) {
+        if (!ready) {
+            return true;
+        }
+        AtomicLongArray current = bits;
+        for (long index : indexes(id)) {
+            if ((current.get((int) (index >>> 6)) & mask(index)) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * 新增id，写入本地位数组和redis中的bitmap
+     */
+    public void put(Object id) {
+        long[] indexes = putLocal(id);
+        redisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            byte[] key = redisKey.getBytes(StandardCharsets.UTF_8);
+            for (long index : indexes) {
+                connection.setBit(key, index, true);
+            }
+            return null;
+        });
+    }
+
+    /**
+     * 只写入本地位数组，用于收到其他节点新增id的广播时
+     */
+    public long[] putLocal(Object id) {
+        long[] indexes = indexes(id);
+        AtomicLongArray current = bits;
+        AtomicLongArray next = building;
+        for (long index : indexes) {
+            setBit(current, index);
+            if (next != null) {
+                setBit(next, index);
+            }
+        }
+        insertions.incrementAndGet();
+        return indexes;
+    }
+
+    /**
+     * 开始重建，之后新增的id会同时写入新的位数组
+     */
+    public void beginRebuild() {
+        building = new AtomicLongArray(bits.length());
+    }
+
+    /**
+     * 向正在重建的位数组中写入id
+     */
+    public void putRebuild(Object id) {
+        for (long index : indexes(id)) {
+            setBit(building, index);
+        }
+    }
+
+    /**
+     * 重建完成，先写入redis的临时key再改名，保证其他节点读不到一半的数据，然后替换本地位数组
+     * 临时key不能设置有效期：RENAME会保留原来key的有效期，改名后共享的位数组会过期
+     * @param count 重建时写入的元素个数
+     */
+    public void finishRebuild(long count) {
+        AtomicLongArray rebuilt = building;
+        String tmpKey = redisKey + ":tmp";
+        redisTemplate.opsForValue().set(tmpKey, toBytes(rebuilt));
+        redisTemplate.rename(tmpKey, redisKey);
+        bits = rebuilt;
+        building = null;
+        insertions.set(count);
+        ready = true;
+    }
+
+    /**
+     * 从redis中加载位数组，redis中不存在时返回false
+     */
+    public boolean loadFromRedis() {
+        byte[] bytes = redisTemplate.opsForValue().get(redisKey);
+        if (bytes == null || bytes.length == 0) {
+            return false;
+        }
+        AtomicLongArray loaded = new AtomicLongArray(bits.length());
+        ByteBuffer buffer = ByteBuffer.wrap(bytes);
+        //redis中只有被setbit过的位置之前的字节，不足的部分都是0
+        for (int i = 0; i < loaded.length() && buffer.remaining() > 0; i++) {
+            if (buffer.remaining() >= 8) {
+                loaded.set(i, buffer.getLong());
+            } else {
+                long word = 0;
+                for (int shift = 56; buffer.remaining() > 0; shift -= 8) {
+                    word |= (buffer.get() & 0xFFL) << shift;
+                }
+                loaded.set(i, word);
+            }
+        }
+        bits = loaded;
+        //按置位的个数估算元素个数 n = -m/k * ln(1 - x/m)
+        long bitCount = 0;
+        for (int i = 0; i < loaded.length(); i++) {
+            bitCount += Long.bitCount(loaded.get(i));
+        }
+        insertions.set((long) (-(double) numBits / numHashFunctions * Math.log(1 - (double) bitCount / numBits)));
+        ready = true;
+        return true;
+    }
+
+    /**
+     * 放弃重建，例如重建过程中查询数据库失败
+     */
+    public void cancelRebuild() {
+        building = null;
+    }
+
+    public boolean isReady() {
+        return ready;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public long getInsertions() {
+        return insertions.get();
+    }
+
+    /**
+     * 按当前写入的元素个数估算的误判率 (1 - e^(-kn/m))^k
+     */
+    public double expectedFpp() {
+        return Math.pow(1 - Math.exp(-numHashFunctions * (double) insertions.get() / numBits), numHashFunctions);
+    }
+
+    /**
+     * 位数组占用的内存字节数
+     */
+    public long memoryBytes() {
+        return numBits / 8;
+    }
+
+    private long[] indexes(Object id) {
+        //两个哈希值组合出k个哈希函数
+        long hash = MurmurHash.hash64(id.toString().getBytes(StandardCharsets.UTF_8));
+        int hash1 = (int) hash;
+        int hash2 = (int) (hash >>> 32);
+        long[] indexes = new long[numHashFunctions];
+        for (int i = 1; i <= numHashFunctions; i++) {
+            int combined = hash1 + i * hash2;
+            if (combined < 0) {
+                combined = ~combined;
+            }
+            indexes[i - 1] = combined % numBits;
+        }
+        return indexes;
+    }
+
+    private static long mask(long index) {
+        //高位在前，和redis的bitmap一致
+        return 1L << (63 - (index & 63));
+    }
+
+    private static void setBit(AtomicLongArray array, long index) {
+        int word = (int) (index >>> 6);
+        long mask = mask(index);
+        long old;
+        do {
+            old = array.get(word);
+            if ((old & mask) != 0) {
+                return;
+            }
+        } while (!array.compareAndSet(word, old, old | mask));
+    }
+
+    private static byte[] toBytes(AtomicLongArray array) {
+        ByteBuffer buffer = ByteBuffer.allocate(array.length() * 8);
+        for (int i = 0; i < array.length(); i++) {
+            buffer.putLong(array.get(i));
+        }
+        return buffer.array();
+    }
+}
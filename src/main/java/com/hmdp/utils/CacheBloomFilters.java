@@ -0,0 +1,158 @@
+package com.hmdp.utils;
+
+import cn.hutool.core.util.BooleanUtil;
+import com.baomidou.mybatisplus.core.mapper.BaseMapper;
+import com.baomidou.mybatisplus.core.conditions.query.QueryWrapper;
+import com.hmdp.mapper.ShopMapper;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.connection.Message;
+import org.springframework.data.redis.connection.MessageListener;
+import org.springframework.data.redis.core.RedisTemplate;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.Resource;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import static com.hmdp.utils.RedisConstants.*;
+
+/**
+ * 管理店铺的布隆过滤器：启动时加载或重建，新增数据时写入，定时重建，并广播给其他节点
+ */
+@Slf4j
+@Component
+public class CacheBloomFilters implements MessageListener {
+
+    private static final String SHOP = "shop";
+
+    //重建时每次从数据库中查询的id个数
+    private static final int PAGE_SIZE = 1000;
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+    @Resource
+    private RedisTemplate<String, byte[]> cacheRedisTemplate;
+    @Resource
+    private CacheClient cacheClient;
+    @Resource
+    private ShopMapper shopMapper;
+    @Resource
+    private MeterRegistry meterRegistry;
+
+    @Value("${hmdp.bloom.shop.expected-insertions:1000000}")
+    private long shopExpectedInsertions;
+    @Value("${hmdp.bloom.fpp:0.01}")
+    private double fpp;
+
+    private BloomFilter shopFilter;
+
+    @PostConstruct
+    public void init() {
+        shopFilter = new BloomFilter(SHOP, shopExpectedInsertions, fpp, cacheRedisTemplate);
+        cacheClient.registerBloomFilter(CACHE_SHOP_KEY, shopFilter);
+        Gauge.builder("cache.bloom.fpp", shopFilter, BloomFilter::expectedFpp)
+                .description("按写入个数估算的误判率").tag("name", SHOP).register(meterRegistry);
+        Gauge.builder("cache.bloom.memory", shopFilter, BloomFilter::memoryBytes)
+                .description("位数组占用的内存").baseUnit("bytes").tag("name", SHOP).register(meterRegistry);
+        Gauge.builder("cache.bloom.insertions", shopFilter, BloomFilter::getInsertions)
+                .tag("name", SHOP).register(meterRegistry);
+        //其他节点已经建好的直接加载，没有的在后台重建，重建完成前过滤器放行所有id
+        CompletableFuture.runAsync(() -> {
+            if (!shopFilter.loadFromRedis()) {
+                rebuild(shopFilter, shopMapper);
+            }
+        });
+    }
+
+    public void putShop(Long shopId) {
+        put(shopFilter, shopId);
+    }
+
+    private void put(BloomFilter filter, Long id) {
+        filter.put(id);
+        //其他节点只在定时刷新时才会从redis加载，先通过广播写入它们的本地位数组
+        stringRedisTemplate.convertAndSend(BLOOM_ADD_CHANNEL, filter.getName() + ":" + id);
+    }
+
+    /**
+     * 收到其他节点新增id的广播
+     */
+    @Override
+    public void onMessage(Message message, byte[] pattern) {
+        String body = new String(message.getBody(), StandardCharsets.UTF_8);
+        int index = body.indexOf(':');
+        String name = body.substring(0, index);
+        Long id = Long.valueOf(body.substring(index + 1));
+        if (SHOP.equals(name)) {
+            shopFilter.putLocal(id);
+        }
+    }
+
+    /**
+     * 定时从数据库重建，清理已删除的数据并修正漏写的id，同一时间只有一个节点重建
+     */
+    @Scheduled(initialDelayString = "${hmdp.bloom.rebuild-interval:21600000}", fixedDelayString = "${hmdp.bloom.rebuild-interval:21600000}")
+    public void scheduledRebuild() {
+        rebuild(shopFilter, shopMapper);
+    }
+
+    /**
+     * 定时从redis加载其他节点重建好的位数组
+     */
+    @Scheduled(initialDelayString = "${hmdp.bloom.refresh-interval:300000}", fixedDelayString = "${hmdp.bloom.refresh-interval:300000}")
+    public void refresh() {
+        shopFilter.loadFromRedis();
+    }
+
+    /**
+     * 按id分页遍历表中所有的id重建过滤器
+     * 表的id是自增的，改名生效后再补上遍历期间新插入的id，避免它们的setbit写到了旧的bitmap中而丢失
+     */
+    private <T> void rebuild(BloomFilter filter, BaseMapper<T> mapper) {
+        String lockKey = LOCK_BLOOM_KEY + filter.getName();
+        Boolean isLock = stringRedisTemplate.opsForValue().setIfAbsent(lockKey, "1", LOCK_BLOOM_TTL, TimeUnit.MINUTES);
+        if (!BooleanUtil.isTrue(isLock)) {
+            //其他节点正在重建，等它完成后定时刷新即可
+            return;
+        }
+        long begin = System.currentTimeMillis();
+        filter.beginRebuild();
+        try {
+            long lastId = 0;
+            long count = 0;
+            List<Object> ids;
+            do {
+                ids = mapper.selectObjs(new QueryWrapper<T>().select("id").gt("id", lastId)
+                        .orderByAsc("id").last("limit " + PAGE_SIZE));
+                for (Object id : ids) {
+                    filter.putRebuild(id);
+                }
+                count += ids.size();
+                if (!ids.isEmpty()) {
+                    lastId = ((Number) ids.get(ids.size() - 1)).longValue();
+                }
+            } while (ids.size() == PAGE_SIZE);
+            filter.finishRebuild(count);
+
+            //补上遍历期间新插入的id
+            for (Object id : mapper.selectObjs(new QueryWrapper<T>().select("id").gt("id", lastId))) {
+                filter.put(id);
+            }
+            log.info("布隆过滤器{}重建完成，共{}个id，耗时{}ms，预计误判率{}",
+                    filter.getName(), count, System.currentTimeMillis() - begin, filter.expectedFpp());
+        } catch (Exception e) {
+            filter.cancelRebuild();
+            log.error("布隆过滤器{}重建失败", filter.getName(), e);
+        } finally {
+            stringRedisTemplate.delete(lockKey);
+        }
+    }
+}
@@ -1,19 +1,32 @@
 package com.hmdp.utils;
 
 import cn.hutool.core.util.BooleanUtil;
-import cn.hutool.core.util.StrUtil;
-import cn.hutool.json.JSONObject;
-import cn.hutool.json.JSONUtil;
-import com.hmdp.entity.Shop;
 import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.redis.connection.RedisStringCommands;
+import org.springframework.data.redis.connection.ReturnType;
+import org.springframework.data.redis.connection.StringRedisConnection;
+import org.springframework.data.redis.core.ReactiveRedisTemplate;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.RedisTemplate;
 import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.data.redis.core.types.Expiration;
 import org.springframework.stereotype.Component;
 
-import java.time.LocalDateTime;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadLocalRandom;
 import java.util.concurrent.TimeUnit;
 import java.util.function.Function;
+import java.util.function.Supplier;
+import java.util.stream.Collectors;
 
 import static com.hmdp.utils.RedisConstants.*;
 import static com.hmdp.utils.RedisConstants.LOCK_SHOP_KEY;
@@ -25,39 +38,138 @@ import static com.hmdp.utils.RedisConstants.LOCK_SHOP_KEY;
 @Component
 public class CacheClient {
 
+    private static final byte[] EMPTY_VALUE = new byte[0];
+
+    //比较版本号后写入缓存的脚本
+    private static final DefaultRedisScript<Long> CACHE_CAS_SCRIPT;
+    static {
+        CACHE_CAS_SCRIPT = new DefaultRedisScript<>();
+        CACHE_CAS_SCRIPT.setLocation(new ClassPathResource("cache_cas.lua"));
+        CACHE_CAS_SCRIPT.setResultType(Long.class);
+    }
+
     private final StringRedisTemplate stringRedisTemplate;
 
+    //缓存的value按字节读写
+    private final RedisTemplate<String, byte[]> cacheRedisTemplate;
+
+    //负责缓存值的编码和解码
+    private final CacheSerializer cacheSerializer;
+
+    //一级缓存，命中时直接返回反序列化好的对象，不访问redis
+    private final LocalCache localCache;
+
+    //key前缀对应的布隆过滤器，一定不存在的id不查redis和数据库
+    private final Map<String, BloomFilter> bloomFilters = new ConcurrentHashMap<>();
+
+    //合并本节点对同一个key的并发加载和重建
+    private final SingleFlight singleFlight = new SingleFlight();
+
+    //等待其他线程加载同一个key的最长时间，毫秒
+    private final long singleFlightTimeout;
+
+    //key前缀对应的逻辑过期刷新方式，没有配置的使用互斥锁
+    private final Map<String, RefreshMode> refreshModes = new ConcurrentHashMap<>();
+
+    //提前概率刷新的系数，越大越早刷新
+    private final double xfetchBeta;
+
+    //按key前缀统计命中率、重建次数和各阶段耗时
+    private final CacheMetrics cacheMetrics;
+
+    //有界的重建线程池，队列满时放弃重建，继续返回旧数据
+    private final CacheRebuildExecutor cacheRebuildExecutor;
+
+    //异步查询使用的redisTemplate，基于lettuce的异步连接
+    private final ReactiveRedisTemplate<String, byte[]> reactiveCacheRedisTemplate;
+
+    //异步查询时执行数据库查询等阻塞操作的线程池
+    private final Executor cacheDbExecutor;
 
-    public CacheClient(StringRedisTemplate stringRedisTemplate) {
+    //统计每个key的访问频率，热点key才放入一级缓存（hmdp.cache.local.admission=hot时）
+    private final HotKeyDetector hotKeyDetector;
+
+    public CacheClient(StringRedisTemplate stringRedisTemplate, RedisTemplate<String, byte[]> cacheRedisTemplate,
+                       CacheSerializer cacheSerializer, LocalCache localCache, CacheMetrics cacheMetrics,
+                       HotKeyDetector hotKeyDetector, CacheRebuildExecutor cacheRebuildExecutor,
+                       ReactiveRedisTemplate<String, byte[]> reactiveCacheRedisTemplate,
+                       @Qualifier("cacheDbExecutor") Executor cacheDbExecutor,
+                       @Value("${hmdp.cache.single-flight-timeout:3000}") long singleFlightTimeout,
+                       @Value("${hmdp.cache.xfetch.key-prefixes:}") String[] xfetchKeyPrefixes,
+                       @Value("${hmdp.cache.xfetch.beta:1.0}") double xfetchBeta) {
         this.stringRedisTemplate = stringRedisTemplate;
+        this.cacheRedisTemplate = cacheRedisTemplate;
+        this.cacheSerializer = cacheSerializer;
+        this.localCache = localCache;
+        this.cacheMetrics = cacheMetrics;
+        this.hotKeyDetector = hotKeyDetector;
+        this.cacheRebuildExecutor = cacheRebuildExecutor;
+        this.reactiveCacheRedisTemplate = reactiveCacheRedisTemplate;
+        this.cacheDbExecutor = cacheDbExecutor;
+        this.singleFlightTimeout = singleFlightTimeout;
+        this.xfetchBeta = xfetchBeta;
+        for (String keyPrefix : xfetchKeyPrefixes) {
+            setRefreshMode(keyPrefix, RefreshMode.XFETCH);
+        }
+    }
+
+    /**
+     * 设置key前缀的逻辑过期刷新方式
+     * @param keyPrefix
+     * @param refreshMode
+     */
+    public void setRefreshMode(String keyPrefix, RefreshMode refreshMode){
+        refreshModes.put(keyPrefix, refreshMode);
     }
 
     /**
-     * 将任意java对象序列化为json并储存到key为String类型的key的redis中，可以设置ttl
+     * 为key前缀注册布隆过滤器，查询该前缀的缓存前先判断id是否可能存在
+     * @param keyPrefix
+     * @param bloomFilter
+     */
+    public void registerBloomFilter(String keyPrefix, BloomFilter bloomFilter){
+        bloomFilters.put(keyPrefix, bloomFilter);
+    }
+
+    /**
+     * 布隆过滤器判断id一定不存在时返回false，没有注册过滤器的前缀都返回true
+     */
+    private boolean mightExist(String keyPrefix, Object id){
+        BloomFilter bloomFilter = bloomFilters.get(keyPrefix);
+        if(bloomFilter == null || bloomFilter.mightContain(id)){
+            return true;
+        }
+        cacheMetrics.rejected(keyPrefix);
+        return false;
+    }
+
+    /**
+     * 将任意java对象编码后储存到key为String类型的key的redis中，可以设置ttl
+     * 和重建一样比较版本号后写入，不会覆盖更新的数据
      * @param key
      * @param value
      * @param time
      * @param unit
      */
     public void set(String key, Object value, Long time, TimeUnit unit){
-        stringRedisTemplate.opsForValue().set(key, JSONUtil.toJsonStr(value),time,unit);
+        long version = readVersion(key);
+        compareAndSet(key, cacheSerializer.write(value, version), version, unit.toMillis(time));
     }
 
     /**
-     * 将任意java对象序列化为json并储存到key为String类型的key的redis中，设置逻辑过期时间解决缓存击穿问题
+     * 将任意java对象编码后储存到key为String类型的key的redis中，设置逻辑过期时间解决缓存击穿问题
      * @param key
      * @param value
      * @param time
      * @param unit
      */
     public void setLogicalExpire(String key, Object value, Long time, TimeUnit unit){
-        //封装到redisData中
-        RedisData redisData = new RedisData();
-        redisData.setData(value);
-        redisData.setExpireTime(LocalDateTime.now().plusSeconds(unit.toSeconds(time)));
+        //逻辑过期时间写在头部中，value需要在调用前查询，这里读到的版本号可能已经偏新，由调用方保证顺序
+        long version = readVersion(key);
+        long expireTime = System.currentTimeMillis() + unit.toMillis(time);
 
-        //写入redis中
-        stringRedisTemplate.opsForValue().set(key, JSONUtil.toJsonStr(redisData));
+        //比较版本号后写入redis中
+        compareAndSet(key, cacheSerializer.writeLogical(value, expireTime, 0, version), version, 0);
 
     }
 
@@ -74,37 +186,94 @@ public class CacheClient {
      * @param <ID>
      */
     public <R,ID> R queryWithPassThrough(String keyPrefix, ID id, Class<R> type, Function<ID,R> dbFallback,Long time, TimeUnit unit){
+        //布隆过滤器判断一定不存在，不用查redis和数据库，也不用缓存空值
+        if(!mightExist(keyPrefix, id)){
+            return null;
+        }
         String key = keyPrefix +id;
+        hotKeyDetector.record(key);
+        //先查一级缓存，命中（包括命中空值）直接返回
+        LocalCache.Entry entry = localCache.get(key);
+        if(entry != null){
+            if(entry.isNull()){
+                cacheMetrics.nullHit(keyPrefix, CacheMetrics.LOCAL);
+            }else {
+                cacheMetrics.hit(keyPrefix, CacheMetrics.LOCAL);
+            }
+            return entry.getValue(type);
+        }
+
         //从redis中查询缓存
-        String json = stringRedisTemplate.opsForValue().get(key);
+        byte[] bytes = decodable(keyPrefix, key, cacheMetrics.timeRedisGet(keyPrefix, () -> cacheRedisTemplate.opsForValue().get(key)));
 
         //判断是否存在
-        if(StrUtil.isNotBlank(json)){
-            //存在，直接返回
-            return JSONUtil.toBean(json,type);
+        if(bytes != null && bytes.length > 0){
+            //存在，放入一级缓存后返回
+            cacheMetrics.hit(keyPrefix, CacheMetrics.REDIS);
+            R r = cacheMetrics.timeDecode(keyPrefix, () -> cacheSerializer.read(bytes,type));
+            localCache.put(key, bytes, Long.MAX_VALUE);
+            return r;
         }
 
         //判断命中的value是否为空值
-        if(json != null){
+        if(bytes != null){
+            cacheMetrics.nullHit(keyPrefix, CacheMetrics.REDIS);
+            localCache.put(key, null, Long.MAX_VALUE);
             return null;
         }
 
-        //redis中不存在，根据id查询数据库
-        R r = dbFallback.apply(id);
+        cacheMetrics.miss(keyPrefix);
+        //redis中不存在，根据id查询数据库，同一个key的并发查询只有一个线程去查，其他线程等待它的结果
+        //等待超时说明数据库很慢，不再各自查询数据库，只返回一级缓存中已有的数据
+        return singleFlight.execute(key,
+                () -> loadAndCache(keyPrefix, id, dbFallback, time, unit),
+                singleFlightTimeout,
+                () -> loadTimedOut(keyPrefix, key, type));
+    }
+
+    /**
+     * 等待其他线程加载超时，返回一级缓存中的数据（包括逻辑过期的旧数据、等待期间刚加载好的数据）
+     * 一级缓存中也没有时查询失败，每个等待的线程都去查询数据库会把本来就很慢的数据库压垮
+     */
+    private <R> R loadTimedOut(String keyPrefix, String key, Class<R> type){
+        cacheMetrics.waitTimeout(keyPrefix);
+        LocalCache.Entry entry = localCache.get(key);
+        if(entry != null){
+            return entry.getValue(type);
+        }
+        throw new IllegalStateException("等待缓存加载超时:" + key);
+    }
+
+    /**
+     * 查询数据库并写入redis和一级缓存，数据库中不存在时缓存空值
+     */
+    private <R,ID> R loadAndCache(String keyPrefix, ID id, Function<ID,R> dbFallback, Long time, TimeUnit unit){
+        String key = keyPrefix + id;
+        //先读版本号再查询数据库，查询期间缓存被删除过时不写入
+        long version = readVersion(key);
+        R r = cacheMetrics.timeDbLoad(keyPrefix, () -> dbFallback.apply(id));
 
         //数据库中不存在，返回空，往redis中放value为空的键值对
         if(r == null){
-            stringRedisTemplate.opsForValue().set(key,"",CACHE_NULL_TTL,TimeUnit.MINUTES);
+            if(compareAndSet(key, EMPTY_VALUE, version, TimeUnit.MINUTES.toMillis(CACHE_NULL_TTL))){
+                localCache.put(key, null, Long.MAX_VALUE);
+            }else {
+                cacheMetrics.versionConflict(keyPrefix);
+            }
+            return null;
         }
 
         //如果数据库中存在，返回数据库中的数据，往redis中放数据库的数据信息
-        stringRedisTemplate.opsForValue().set(key,JSONUtil.toJsonStr(r),time,unit);
+        byte[] bytes = cacheSerializer.write(r, version);
+        if(compareAndSet(key, bytes, version, unit.toMillis(time))){
+            localCache.put(key, bytes, Long.MAX_VALUE);
+        }else {
+            cacheMetrics.versionConflict(keyPrefix);
+        }
 
         return r;
     }
 
-    private static final ExecutorService CACHE_REBUILD_EXECUTOR = Executors.newFixedThreadPool(10);
-
     /**
      *根据key查询缓存，并序列化为指定类型，利用逻辑过期解决缓存击穿问题
      * @param keyPrefix
@@ -118,56 +287,665 @@ public class CacheClient {
      * @param <ID>
      */
     public <R,ID> R queryWithLogicalExpire(String keyPrefix,ID id,Class<R> type,Function<ID,R> dbFallback,Long time, TimeUnit unit){
+        //布隆过滤器判断一定不存在，直接返回
+        if(!mightExist(keyPrefix, id)){
+            return null;
+        }
         String key = keyPrefix + id;
+        hotKeyDetector.record(key);
+        boolean xfetch = refreshModes.get(keyPrefix) == RefreshMode.XFETCH;
+        //0.先查一级缓存，只有逻辑上没过期的才直接返回，过期的交给下面的流程重建
+        LocalCache.Entry entry = localCache.get(key);
+        if(entry != null && !entry.isExpired()){
+            cacheMetrics.hit(keyPrefix, CacheMetrics.LOCAL);
+            if(xfetch && shouldRefreshEarly(entry.getExpireTime(), entry.getRebuildCost())){
+                refreshEarly(keyPrefix, id, dbFallback, time, unit);
+            }
+            return entry.getValue(type);
+        }
+
         //1.从redis中查询缓存
-        String Json = stringRedisTemplate.opsForValue().get(key);
+        byte[] bytes = decodable(keyPrefix, key, cacheMetrics.timeRedisGet(keyPrefix, () -> cacheRedisTemplate.opsForValue().get(key)));
 
-        //2.判断在redis中是否存在该信息,因为redis中已经提前初始化了信息，所以数据库中有的一定存在
-        if(StrUtil.isBlank(Json)){
-            //3.不存在，直接返回空信息
-            return null;
+        //2.判断在redis中是否存在该信息，预热后数据库中有的一般都存在
+        if(bytes == null || bytes.length == 0){
+            //3.不存在（修改后被删除、预热之后新增），同一个key只有一个线程查询数据库并写回逻辑过期的缓存
+            cacheMetrics.miss(keyPrefix);
+            return singleFlight.execute(key,
+                    () -> loadLogical(keyPrefix, id, dbFallback, time, unit),
+                    singleFlightTimeout,
+                    () -> loadTimedOut(keyPrefix, key, type));
         }
 
-        //4命中，把json反序列化成对象
-        RedisData redisData = JSONUtil.toBean(Json, RedisData.class);
-        JSONObject data = (JSONObject) redisData.getData();
-        R r = JSONUtil.toBean(data, type);
-        LocalDateTime expireTime = redisData.getExpireTime();
+        //4命中，把数据直接解码成指定类型
+        RedisData redisData = cacheMetrics.timeDecode(keyPrefix, () -> cacheSerializer.readLogical(bytes, type));
+        R r = type.cast(redisData.getData());
+        long expireTime = redisData.getExpireTime();
 
         //5查看店铺信息是否过期
-        if (expireTime.isAfter(LocalDateTime.now())) {
-            //5.1未过期，直接返回
+        if (expireTime > System.currentTimeMillis()) {
+            //5.1未过期，放入一级缓存后直接返回，提前概率刷新模式下可能触发一次后台刷新
+            cacheMetrics.hit(keyPrefix, CacheMetrics.REDIS);
+            localCache.put(key, bytes, expireTime, redisData.getRebuildCost());
+            if(xfetch && shouldRefreshEarly(expireTime, redisData.getRebuildCost())){
+                refreshEarly(keyPrefix, id, dbFallback, time, unit);
+            }
             return r;
         }
         //5.2过期，缓存重建
+        cacheMetrics.stale(keyPrefix, CacheMetrics.REDIS);
+        return rebuildExpired(keyPrefix, id, r, type, dbFallback, time, unit);
+    }
+
+    /**
+     * 逻辑过期的缓存未命中时查询数据库，比较版本号后写回redis和一级缓存，记录重建耗时供提前刷新使用
+     * 数据库中不存在时不写入，不存在的id由布隆过滤器拦截
+     */
+    private <R,ID> R loadLogical(String keyPrefix, ID id, Function<ID,R> dbFallback, Long time, TimeUnit unit){
+        String key = keyPrefix + id;
+        long version = readVersion(key);
+        long begin = System.currentTimeMillis();
+        R r = dbFallback.apply(id);
+        int rebuildCost = (int) (System.currentTimeMillis() - begin);
+        cacheMetrics.recordDbLoad(keyPrefix, rebuildCost);
+        if(r == null){
+            return null;
+        }
+        long expireTime = System.currentTimeMillis() + unit.toMillis(time);
+        byte[] bytes = cacheSerializer.writeLogical(r, expireTime, rebuildCost, version);
+        if(compareAndSet(key, bytes, version, 0)){
+            localCache.put(key, bytes, expireTime, rebuildCost);
+        }else {
+            cacheMetrics.versionConflict(keyPrefix);
+        }
+        return r;
+    }
 
+    /**
+     * 逻辑过期后的缓存重建，返回旧数据或者其他节点刚重建好的数据
+     * 会访问redis获取互斥锁，异步查询时不能在lettuce的io线程中调用
+     */
+    private <R,ID> R rebuildExpired(String keyPrefix, ID id, R r, Class<R> type, Function<ID,R> dbFallback, Long time, TimeUnit unit){
+        String key = keyPrefix + id;
         //6缓存重建
-        //6.1获取互斥锁
+        //6.1本节点已经有线程在重建这个key，直接返回旧数据，不用再去竞争互斥锁
+        CompletableFuture<Object> call = singleFlight.begin(key);
+        if(call == null){
+            return r;
+        }
+        //6.2获取互斥锁
         String locKey = LOCK_SHOP_KEY + id;
         boolean isLock = tryLock(locKey);
-        //6.2判断获取互斥锁是否成功
-        if(isLock) {
-            //TODO:开启二次检查，如果获取锁的时候缓存还没过期（已经被更新），就不用实现缓存重建
-            //6.3成功，开启新线程（交给线程池），实现缓存重建
-            CACHE_REBUILD_EXECUTOR.submit(() -> {
+        //6.3判断获取互斥锁是否成功
+        if(!isLock) {
+            //其他节点正在重建
+            cacheMetrics.lockFailed(keyPrefix);
+            singleFlight.finish(key, call, r, null);
+            return r;
+        }
+        //6.4二次检查，获取锁之前其他节点可能刚重建完并释放了锁，只读头部的过期时间判断是否已经被更新
+        byte[] latest = decodable(keyPrefix, key, cacheRedisTemplate.opsForValue().get(key));
+        if(latest != null && latest.length > 0 && cacheSerializer.expireTimeOf(latest) > System.currentTimeMillis()){
+            unlock(locKey);
+            R fresh = type.cast(cacheSerializer.readLogical(latest, type).getData());
+            singleFlight.finish(key, call, fresh, null);
+            return fresh;
+        }
+        //6.5成功，开启新线程（交给线程池），实现缓存重建
+        rebuildAsync(keyPrefix, id, dbFallback, time, unit, call, locKey);
+        //7.无论有没有获得锁，都是立刻返回当前的店铺信息，重建过程交给独立线程完成
+        return r;
+    }
+
+    /**
+     * queryWithPassThrough的异步版本，redis使用lettuce的异步命令，查询数据库在单独的线程池中执行
+     * 查询过程中不占用调用方（例如tomcat）的线程
+     * @return 查询结果的future，数据不存在时结果为null
+     */
+    public <R,ID> CompletableFuture<R> queryWithPassThroughAsync(String keyPrefix, ID id, Class<R> type, Function<ID,R> dbFallback, Long time, TimeUnit unit){
+        if(!mightExist(keyPrefix, id)){
+            return CompletableFuture.completedFuture(null);
+        }
+        String key = keyPrefix + id;
+        hotKeyDetector.record(key);
+        LocalCache.Entry entry = localCache.get(key);
+        if(entry != null){
+            if(entry.isNull()){
+                cacheMetrics.nullHit(keyPrefix, CacheMetrics.LOCAL);
+            }else {
+                cacheMetrics.hit(keyPrefix, CacheMetrics.LOCAL);
+            }
+            return CompletableFuture.completedFuture(entry.getValue(type));
+        }
+
+        return getAsync(keyPrefix, key).thenCompose(bytes -> {
+            if(bytes != null && bytes.length > 0){
+                cacheMetrics.hit(keyPrefix, CacheMetrics.REDIS);
+                R r = cacheMetrics.timeDecode(keyPrefix, () -> cacheSerializer.read(bytes, type));
+                localCache.put(key, bytes, Long.MAX_VALUE);
+                return CompletableFuture.completedFuture(r);
+            }
+            if(bytes != null){
+                cacheMetrics.nullHit(keyPrefix, CacheMetrics.REDIS);
+                localCache.put(key, null, Long.MAX_VALUE);
+                return CompletableFuture.completedFuture(null);
+            }
+            cacheMetrics.miss(keyPrefix);
+            //未命中，在数据库线程池中查询数据库并写回缓存；线程池已满时没有旧数据可以返回，查询失败
+            return supplyBlocking(keyPrefix, () -> singleFlight.execute(key,
+                    () -> loadAndCache(keyPrefix, id, dbFallback, time, unit),
+                    singleFlightTimeout,
+                    () -> loadTimedOut(keyPrefix, key, type)), null);
+        });
+    }
+
+    /**
+     * queryWithLogicalExpire的异步版本，redis使用lettuce的异步命令
+     * 未过期时在lettuce的线程中直接完成；过期时获取互斥锁等操作放到数据库线程池中执行，不阻塞io线程
+     * @return 查询结果的future，数据不存在时结果为null
+     */
+    public <R,ID> CompletableFuture<R> queryWithLogicalExpireAsync(String keyPrefix, ID id, Class<R> type, Function<ID,R> dbFallback, Long time, TimeUnit unit){
+        if(!mightExist(keyPrefix, id)){
+            return CompletableFuture.completedFuture(null);
+        }
+        String key = keyPrefix + id;
+        hotKeyDetector.record(key);
+        boolean xfetch = refreshModes.get(keyPrefix) == RefreshMode.XFETCH;
+        LocalCache.Entry entry = localCache.get(key);
+        if(entry != null && !entry.isExpired()){
+            cacheMetrics.hit(keyPrefix, CacheMetrics.LOCAL);
+            if(xfetch && shouldRefreshEarly(entry.getExpireTime(), entry.getRebuildCost())){
+                refreshEarly(keyPrefix, id, dbFallback, time, unit);
+            }
+            return CompletableFuture.completedFuture(entry.getValue(type));
+        }
+
+        return getAsync(keyPrefix, key).thenCompose(bytes -> {
+            if(bytes == null || bytes.length == 0){
+                cacheMetrics.miss(keyPrefix);
+                //未命中，和同步版本一样在数据库线程池中查询并写回；线程池已满时没有旧数据可以返回，查询失败
+                return supplyBlocking(keyPrefix, () -> singleFlight.execute(key,
+                        () -> loadLogical(keyPrefix, id, dbFallback, time, unit),
+                        singleFlightTimeout,
+                        () -> loadTimedOut(keyPrefix, key, type)), null);
+            }
+            RedisData redisData = cacheMetrics.timeDecode(keyPrefix, () -> cacheSerializer.readLogical(bytes, type));
+            R r = type.cast(redisData.getData());
+            long expireTime = redisData.getExpireTime();
+            if(expireTime > System.currentTimeMillis()){
+                cacheMetrics.hit(keyPrefix, CacheMetrics.REDIS);
+                localCache.put(key, bytes, expireTime, redisData.getRebuildCost());
+                if(xfetch && shouldRefreshEarly(expireTime, redisData.getRebuildCost())){
+                    refreshEarly(keyPrefix, id, dbFallback, time, unit);
+                }
+                return CompletableFuture.completedFuture(r);
+            }
+            cacheMetrics.stale(keyPrefix, CacheMetrics.REDIS);
+            //获取互斥锁等阻塞操作在数据库线程池中执行，线程池已满时直接返回旧数据
+            return supplyBlocking(keyPrefix, () -> rebuildExpired(keyPrefix, id, r, type, dbFallback, time, unit), () -> r);
+        });
+    }
+
+    /**
+     * 把阻塞的操作（查询数据库、同步的redis命令）切换到数据库线程池中执行
+     * 调用线程一般是lettuce的io线程，线程池已满时不能在调用线程中执行，否则阻塞的命令要等io线程自己返回结果，可能卡死
+     * @param fallback 线程池拒绝时的结果，例如逻辑过期的旧数据；为null时返回拒绝异常
+     */
+    private <T> CompletableFuture<T> supplyBlocking(String keyPrefix, Supplier<T> task, Supplier<T> fallback){
+        try {
+            return CompletableFuture.supplyAsync(task, cacheDbExecutor);
+        } catch (RejectedExecutionException e) {
+            cacheMetrics.rebuildRejected(keyPrefix);
+            if(fallback != null){
+                return CompletableFuture.completedFuture(fallback.get());
+            }
+            CompletableFuture<T> failed = new CompletableFuture<>();
+            failed.completeExceptionally(e);
+            return failed;
+        }
+    }
+
+    /**
+     * 用lettuce的异步命令查询redis，不存在或者无法解码时结果为null
+     */
+    private CompletableFuture<byte[]> getAsync(String keyPrefix, String key){
+        long begin = System.nanoTime();
+        return reactiveCacheRedisTemplate.opsForValue().get(key).toFuture()
+                .whenComplete((bytes, e) -> cacheMetrics.recordRedisGet(keyPrefix, System.nanoTime() - begin))
+                .thenApply(bytes -> decodable(keyPrefix, key, bytes));
+    }
+
+    /**
+     * 当前节点无法解码的值（其他节点用更新的编码器写入、数据损坏）按未命中处理，查询数据库后按版本号覆盖
+     */
+    private byte[] decodable(String keyPrefix, String key, byte[] bytes){
+        if(bytes == null || bytes.length == 0 || cacheSerializer.canDecode(bytes)){
+            return bytes;
+        }
+        cacheMetrics.undecodable(keyPrefix);
+        log.warn("缓存无法解码，按未命中处理，key:{}", key);
+        return null;
+    }
+
+    /**
+     * XFetch：now - 重建耗时 * beta * ln(rand) >= 过期时间 时提前刷新
+     * ln(rand)是负数，重建越慢、越接近过期时间，条件越容易满足
+     */
+    private boolean shouldRefreshEarly(long expireTime, int rebuildCost){
+        if(rebuildCost <= 0){
+            return false;
+        }
+        double gap = -rebuildCost * xfetchBeta * Math.log(ThreadLocalRandom.current().nextDouble());
+        return System.currentTimeMillis() + gap >= expireTime;
+    }
+
+    /**
+     * 提前刷新，不获取分布式锁，本节点同一个key只刷新一次
+     */
+    private <R,ID> void refreshEarly(String keyPrefix, ID id, Function<ID,R> dbFallback, Long time, TimeUnit unit){
+        CompletableFuture<Object> call = singleFlight.begin(keyPrefix + id);
+        if(call != null){
+            rebuildAsync(keyPrefix, id, dbFallback, time, unit, call, null);
+        }
+    }
+
+    /**
+     * 在线程池中重建逻辑过期缓存，并记录重建耗时
+     * 任务中的异常在这里记录日志和指标，不再抛给线程池
+     * 线程池拒绝时放弃这次重建，释放锁，调用方继续返回旧数据，等下一次查询再触发
+     * @param lockKey 持有的互斥锁，没有时为null
+     */
+    private <R,ID> void rebuildAsync(String keyPrefix, ID id, Function<ID,R> dbFallback, Long time, TimeUnit unit,
+                                     CompletableFuture<Object> call, String lockKey){
+        String key = keyPrefix + id;
+        boolean submitted = cacheRebuildExecutor.submit(key, () -> {
+            R r1 = null;
+            Throwable error = null;
+            try {
+                //重建缓存
+                //先读版本号再查询数据库
+                long version = readVersion(key);
+                long begin = System.currentTimeMillis();
+                r1 = dbFallback.apply(id);
+                int rebuildCost = (int) (System.currentTimeMillis() - begin);
+                cacheMetrics.recordDbLoad(keyPrefix, rebuildCost);
+                //比较版本号后写入redis，成功时更新本节点的一级缓存；查询期间数据被修改过时放弃，下次查询再重建
+                long expireTime = System.currentTimeMillis() + unit.toMillis(time);
+                byte[] bytes = cacheSerializer.writeLogical(r1, expireTime, rebuildCost, version);
+                if(compareAndSet(key, bytes, version, 0)){
+                    localCache.put(key, bytes, expireTime, rebuildCost);
+                }else {
+                    cacheMetrics.versionConflict(keyPrefix);
+                }
+            } catch (Exception e) {
+                error = e;
+                cacheMetrics.rebuildError(keyPrefix);
+                log.error("缓存重建失败，key:{}", key, e);
+            }finally {
+                //用于一定要释放锁，所以要设置try...catch...finally
+                if(lockKey != null){
+                    unlock(lockKey);
+                }
+                singleFlight.finish(key, call, r1, error);
+            }
+        });
+        if(!submitted){
+            cacheMetrics.rebuildRejected(keyPrefix);
+            if(lockKey != null){
+                unlock(lockKey);
+            }
+            singleFlight.finish(key, call, null, null);
+            return;
+        }
+        cacheMetrics.rebuild(keyPrefix);
+    }
+    /**
+     * 批量查询缓存，一次MGET查询所有key，未命中的id一次性交给数据库查询，再用一次管道写回redis
+     * 命中和未命中的处理与queryWithPassThrough一致，数据库中不存在的id同样缓存空值
+     * @param keyPrefix
+     * @param ids
+     * @param type
+     * @param dbFallback 根据一批id查询数据库，返回id到数据的映射，例如listByIds后按id分组
+     * @param time
+     * @param unit
+     * @return 按ids顺序排列的id到数据的映射，不存在的id不会出现在结果中
+     * @param <R>
+     * @param <ID>
+     */
+    public <R,ID> Map<ID,R> queryBatchWithPassThrough(String keyPrefix, Collection<ID> ids, Class<R> type,
+                                                      Function<Collection<ID>, Map<ID,R>> dbFallback, Long time, TimeUnit unit){
+        Map<ID,R> result = new LinkedHashMap<>(ids.size());
+        //1.先查一级缓存，剩下的id再去redis查
+        List<ID> remoteIds = new ArrayList<>(ids.size());
+        for (ID id : ids) {
+            if(!mightExist(keyPrefix, id)){
+                continue;
+            }
+            hotKeyDetector.record(keyPrefix + id);
+            LocalCache.Entry entry = localCache.get(keyPrefix + id);
+            if(entry == null){
+                remoteIds.add(id);
+            }else if(entry.isNull()){
+                cacheMetrics.nullHit(keyPrefix, CacheMetrics.LOCAL);
+            }else {
+                cacheMetrics.hit(keyPrefix, CacheMetrics.LOCAL);
+                result.put(id, entry.getValue(type));
+            }
+        }
+        if(remoteIds.isEmpty()){
+            return sortByIds(ids, result);
+        }
+
+        //2.一次MGET查询redis
+        List<String> keys = remoteIds.stream().map(id -> keyPrefix + id).collect(Collectors.toList());
+        List<byte[]> values = cacheMetrics.timeRedisGet(keyPrefix, () -> cacheRedisTemplate.opsForValue().multiGet(keys));
+
+        List<ID> missIds = new ArrayList<>();
+        for (int i = 0; i < remoteIds.size(); i++) {
+            ID id = remoteIds.get(i);
+            byte[] bytes = values == null ? null : decodable(keyPrefix, keys.get(i), values.get(i));
+            if(bytes != null && bytes.length > 0){
+                //命中真实数据
+                cacheMetrics.hit(keyPrefix, CacheMetrics.REDIS);
+                R r = cacheMetrics.timeDecode(keyPrefix, () -> cacheSerializer.read(bytes, type));
+                localCache.put(keys.get(i), bytes, Long.MAX_VALUE);
+                result.put(id, r);
+            }else if(bytes != null){
+                //命中空值
+                cacheMetrics.nullHit(keyPrefix, CacheMetrics.REDIS);
+                localCache.put(keys.get(i), null, Long.MAX_VALUE);
+            }else {
+                cacheMetrics.miss(keyPrefix);
+                missIds.add(id);
+            }
+        }
+        if(missIds.isEmpty()){
+            return sortByIds(ids, result);
+        }
+
+        //3.redis中不存在的id，先读版本号，再一次性查询数据库
+        List<String> missKeys = missIds.stream().map(id -> keyPrefix + id).collect(Collectors.toList());
+        long[] versions = readVersions(missKeys);
+        Map<ID,R> dbResult = cacheMetrics.timeDbLoad(keyPrefix, () -> dbFallback.apply(missIds));
+        List<byte[]> writeBacks = new ArrayList<>(missIds.size());
+        long[] ttls = new long[missIds.size()];
+        for (int i = 0; i < missIds.size(); i++) {
+            R r = dbResult == null ? null : dbResult.get(missIds.get(i));
+            writeBacks.add(r == null ? EMPTY_VALUE : cacheSerializer.write(r, versions[i]));
+            //空值使用空值的有效期
+            ttls[i] = r == null ? TimeUnit.MINUTES.toMillis(CACHE_NULL_TTL) : unit.toMillis(time);
+            if(r != null){
+                result.put(missIds.get(i), r);
+            }
+        }
+
+        //4.用一次管道比较版本号后写回redis，写入成功的才放入一级缓存
+        List<Object> written = compareAndSetAll(missKeys, writeBacks, versions, ttls);
+        for (int i = 0; i < missIds.size(); i++) {
+            if(Long.valueOf(1L).equals(written.get(i))){
+                localCache.put(missKeys.get(i), writeBacks.get(i), Long.MAX_VALUE);
+            }else {
+                cacheMetrics.versionConflict(keyPrefix);
+            }
+        }
+        return sortByIds(ids, result);
+    }
+
+    /**
+     * 批量查询逻辑过期的缓存，一次MGET查询所有key
+     * 与queryWithLogicalExpire一致：redis中不存在的合并查询数据库后写回，过期的先返回旧数据，
+     * 拿到互斥锁的过期id合并成一次数据库查询，在线程池中重建，并用一次管道写回redis
+     * @param keyPrefix
+     * @param ids
+     * @param type
+     * @param dbFallback 根据一批id查询数据库，返回id到数据的映射
+     * @param time
+     * @param unit
+     * @return 按ids顺序排列的id到数据的映射
+     * @param <R>
+     * @param <ID>
+     */
+    public <R,ID> Map<ID,R> queryBatchWithLogicalExpire(String keyPrefix, Collection<ID> ids, Class<R> type,
+                                                        Function<Collection<ID>, Map<ID,R>> dbFallback, Long time, TimeUnit unit){
+        Map<ID,R> result = new LinkedHashMap<>(ids.size());
+        //1.先查一级缓存，逻辑上没过期的直接使用
+        List<ID> remoteIds = new ArrayList<>(ids.size());
+        for (ID id : ids) {
+            if(!mightExist(keyPrefix, id)){
+                continue;
+            }
+            hotKeyDetector.record(keyPrefix + id);
+            LocalCache.Entry entry = localCache.get(keyPrefix + id);
+            if(entry != null && !entry.isExpired()){
+                cacheMetrics.hit(keyPrefix, CacheMetrics.LOCAL);
+                result.put(id, entry.getValue(type));
+            }else {
+                remoteIds.add(id);
+            }
+        }
+        if(remoteIds.isEmpty()){
+            return sortByIds(ids, result);
+        }
+
+        //2.一次MGET查询redis
+        List<String> keys = remoteIds.stream().map(id -> keyPrefix + id).collect(Collectors.toList());
+        List<byte[]> values = cacheMetrics.timeRedisGet(keyPrefix, () -> cacheRedisTemplate.opsForValue().multiGet(keys));
+
+        List<ID> expiredIds = new ArrayList<>();
+        List<ID> missIds = new ArrayList<>();
+        for (int i = 0; i < remoteIds.size(); i++) {
+            byte[] bytes = values == null ? null : decodable(keyPrefix, keys.get(i), values.get(i));
+            if(bytes == null || bytes.length == 0){
+                //修改后被删除、预热之后新增的，下面一起查询数据库
+                cacheMetrics.miss(keyPrefix);
+                missIds.add(remoteIds.get(i));
+                continue;
+            }
+            ID id = remoteIds.get(i);
+            RedisData redisData = cacheMetrics.timeDecode(keyPrefix, () -> cacheSerializer.readLogical(bytes, type));
+            R r = type.cast(redisData.getData());
+            result.put(id, r);
+            if(redisData.getExpireTime() > System.currentTimeMillis()){
+                cacheMetrics.hit(keyPrefix, CacheMetrics.REDIS);
+                localCache.put(keys.get(i), bytes, redisData.getExpireTime());
+            }else {
+                cacheMetrics.stale(keyPrefix, CacheMetrics.REDIS);
+                expiredIds.add(id);
+            }
+        }
+        if(!missIds.isEmpty()){
+            loadLogicalBatch(keyPrefix, missIds, dbFallback, time, unit, result);
+        }
+        if(expiredIds.isEmpty()){
+            return sortByIds(ids, result);
+        }
+
+        //3.本节点已经在重建的id跳过，剩下的用一次管道获取互斥锁
+        Map<ID,CompletableFuture<Object>> calls = new LinkedHashMap<>();
+        for (ID id : expiredIds) {
+            CompletableFuture<Object> call = singleFlight.begin(keyPrefix + id);
+            if(call != null){
+                calls.put(id, call);
+            }
+        }
+        if(calls.isEmpty()){
+            return sortByIds(ids, result);
+        }
+        List<ID> lockIds = new ArrayList<>(calls.keySet());
+        List<Object> locked = stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            StringRedisConnection conn = (StringRedisConnection) connection;
+            for (ID id : lockIds) {
+                conn.set(LOCK_SHOP_KEY + id, "1", Expiration.seconds(LOCK_SHOP_TTL), RedisStringCommands.SetOption.SET_IF_ABSENT);
+            }
+            return null;
+        });
+        List<ID> rebuildIds = new ArrayList<>(lockIds.size());
+        for (int i = 0; i < lockIds.size(); i++) {
+            ID id = lockIds.get(i);
+            if(BooleanUtil.isTrue((Boolean) locked.get(i))){
+                rebuildIds.add(id);
+            }else {
+                cacheMetrics.lockFailed(keyPrefix);
+                singleFlight.finish(keyPrefix + id, calls.get(id), result.get(id), null);
+            }
+        }
+
+        //4.拿到锁的id合并重建，无论有没有拿到锁都先返回旧数据
+        if(!rebuildIds.isEmpty()){
+            List<String> rebuildKeys = rebuildIds.stream().map(id -> keyPrefix + id).collect(Collectors.toList());
+            boolean submitted = cacheRebuildExecutor.submit(rebuildKeys, () -> {
+                Map<ID,R> dbResult = null;
+                Throwable error = null;
                 try {
-                    //重建缓存
-                    //查询数据库
-                    R r1 = dbFallback.apply(id);
-                    //写入redis
-                    this.setLogicalExpire(key,r1,time,unit);
-                    //释放锁
+                    //先用一次MGET读取版本号再查询数据库
+                    long[] versions = readVersions(rebuildKeys);
+                    long begin = System.currentTimeMillis();
+                    dbResult = dbFallback.apply(rebuildIds);
+                    int rebuildCost = (int) (System.currentTimeMillis() - begin);
+                    cacheMetrics.recordDbLoad(keyPrefix, rebuildCost);
+                    Map<ID,R> loaded = dbResult == null ? Collections.emptyMap() : dbResult;
+                    long expireTime = System.currentTimeMillis() + unit.toMillis(time);
+                    List<byte[]> rebuildValues = new ArrayList<>(rebuildIds.size());
+                    for (int i = 0; i < rebuildIds.size(); i++) {
+                        rebuildValues.add(cacheSerializer.writeLogical(loaded.get(rebuildIds.get(i)), expireTime, rebuildCost, versions[i]));
+                    }
+                    List<Object> written = compareAndSetAll(rebuildKeys, rebuildValues, versions, new long[rebuildIds.size()]);
+                    written.stream().filter(w -> !Long.valueOf(1L).equals(w)).forEach(w -> cacheMetrics.versionConflict(keyPrefix));
                 } catch (Exception e) {
-                    throw new RuntimeException(e);
-                }finally {
-                    //用于一定要释放锁，所以要设置try...catch...finally
-                    unlock(locKey);
+                    error = e;
+                    rebuildIds.forEach(id -> cacheMetrics.rebuildError(keyPrefix));
+                    log.error("批量缓存重建失败，keyPrefix:{}，ids:{}", keyPrefix, rebuildIds, e);
+                } finally {
+                    stringRedisTemplate.delete(rebuildIds.stream().map(id -> LOCK_SHOP_KEY + id).collect(Collectors.toList()));
+                    for (ID id : rebuildIds) {
+                        singleFlight.finish(keyPrefix + id, calls.get(id), dbResult == null ? null : dbResult.get(id), error);
+                    }
                 }
             });
+            if(submitted){
+                rebuildIds.forEach(id -> cacheMetrics.rebuild(keyPrefix));
+            }else {
+                //放弃这次重建，释放锁后返回旧数据
+                stringRedisTemplate.delete(rebuildIds.stream().map(id -> LOCK_SHOP_KEY + id).collect(Collectors.toList()));
+                for (ID id : rebuildIds) {
+                    cacheMetrics.rebuildRejected(keyPrefix);
+                    singleFlight.finish(keyPrefix + id, calls.get(id), result.get(id), null);
+                }
+            }
         }
-        //7.无论有没有获得锁，都是立刻返回当前的店铺信息，重建过程交给独立线程完成
-        return r;
+        return sortByIds(ids, result);
+    }
+
+    /**
+     * 批量查询中未命中的id合并成一次数据库查询，用一次管道比较版本号后写回逻辑过期的缓存
+     */
+    private <R,ID> void loadLogicalBatch(String keyPrefix, List<ID> missIds, Function<Collection<ID>, Map<ID,R>> dbFallback,
+                                         Long time, TimeUnit unit, Map<ID,R> result){
+        List<String> missKeys = missIds.stream().map(id -> keyPrefix + id).collect(Collectors.toList());
+        long[] versions = readVersions(missKeys);
+        long begin = System.currentTimeMillis();
+        Map<ID,R> dbResult = dbFallback.apply(missIds);
+        int rebuildCost = (int) (System.currentTimeMillis() - begin);
+        cacheMetrics.recordDbLoad(keyPrefix, rebuildCost);
+        if(dbResult == null || dbResult.isEmpty()){
+            return;
+        }
+        long expireTime = System.currentTimeMillis() + unit.toMillis(time);
+        List<String> writeKeys = new ArrayList<>(dbResult.size());
+        List<byte[]> writeValues = new ArrayList<>(dbResult.size());
+        List<Long> writeVersions = new ArrayList<>(dbResult.size());
+        for (int i = 0; i < missIds.size(); i++) {
+            R r = dbResult.get(missIds.get(i));
+            if(r == null){
+                continue;
+            }
+            result.put(missIds.get(i), r);
+            writeKeys.add(missKeys.get(i));
+            writeValues.add(cacheSerializer.writeLogical(r, expireTime, rebuildCost, versions[i]));
+            writeVersions.add(versions[i]);
+        }
+        if(writeKeys.isEmpty()){
+            return;
+        }
+        List<Object> written = compareAndSetAll(writeKeys, writeValues,
+                writeVersions.stream().mapToLong(Long::longValue).toArray(), new long[writeKeys.size()]);
+        written.stream().filter(w -> !Long.valueOf(1L).equals(w)).forEach(w -> cacheMetrics.versionConflict(keyPrefix));
+    }
+
+    /**
+     * 一级缓存和redis的结果是分开放进map的，最后按传入的id顺序重新排列
+     */
+    private <R,ID> Map<ID,R> sortByIds(Collection<ID> ids, Map<ID,R> result){
+        Map<ID,R> sorted = new LinkedHashMap<>(result.size());
+        for (ID id : ids) {
+            R r = result.get(id);
+            if(r != null){
+                sorted.put(id, r);
+            }
+        }
+        return sorted;
+    }
+
+    /**
+     * 缓存key的版本计数器，用hash tag保证和缓存key在同一个slot，lua脚本可以同时访问
+     */
+    private static String versionKey(String key){
+        return CACHE_VERSION_KEY + "{" + key + "}";
+    }
+
+    /**
+     * 读取缓存key当前的版本号，没有删除过时为0
+     */
+    private long readVersion(String key){
+        String version = stringRedisTemplate.opsForValue().get(versionKey(key));
+        return version == null ? 0L : Long.parseLong(version);
+    }
+
+    /**
+     * 比较版本号后写入缓存，缓存在读取版本号之后被删除过、或者已有的缓存版本更新时不写入
+     * @param ttlMillis 有效期，0表示不过期
+     * @return 是否写入
+     */
+    private boolean compareAndSet(String key, byte[] bytes, long version, long ttlMillis){
+        Long result = cacheRedisTemplate.execute(CACHE_CAS_SCRIPT, Arrays.asList(key, versionKey(key)),
+                bytes, toBytes(version), toBytes(ttlMillis));
+        return result != null && result == 1L;
+    }
+
+    /**
+     * 用一次MGET读取一批缓存key的版本号，批量写入缓存前调用，编码时带上对应的版本号
+     */
+    public long[] readVersions(List<String> keys){
+        List<String> values = stringRedisTemplate.opsForValue().multiGet(
+                keys.stream().map(CacheClient::versionKey).collect(Collectors.toList()));
+        long[] versions = new long[keys.size()];
+        for (int i = 0; i < versions.length; i++) {
+            String value = values == null ? null : values.get(i);
+            versions[i] = value == null ? 0L : Long.parseLong(value);
+        }
+        return versions;
     }
+
+    /**
+     * 用一次管道批量比较版本号后写入缓存
+     * @return 每个key的脚本返回值，1表示写入
+     */
+    public List<Object> compareAndSetAll(List<String> keys, List<byte[]> values, long[] versions, long[] ttlMillis){
+        byte[] script = CACHE_CAS_SCRIPT.getScriptAsString().getBytes(StandardCharsets.UTF_8);
+        return cacheRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            for (int i = 0; i < keys.size(); i++) {
+                connection.eval(script, ReturnType.INTEGER, 2,
+                        keys.get(i).getBytes(StandardCharsets.UTF_8), versionKey(keys.get(i)).getBytes(StandardCharsets.UTF_8),
+                        values.get(i), toBytes(versions[i]), toBytes(ttlMillis[i]));
+            }
+            return null;
+        });
+    }
+
+    private static byte[] toBytes(long value){
+        return String.valueOf(value).getBytes(StandardCharsets.UTF_8);
+    }
+
     private boolean tryLock(String key){
         Boolean flag = stringRedisTemplate.opsForValue().setIfAbsent(key, "1", 10, TimeUnit.SECONDS);
         //直接拆箱可能会导致空指针
@@ -183,8 +961,33 @@ public class CacheClient {
     }
 
     /**
-     * 在redis中将店铺信息加上店铺信息有效时间，形成逻辑有效时间
-     * @param id
-     * @param expireSecond
+     * 删除缓存，同时删除本节点的一级缓存，并通过redis的发布订阅通知其他节点删除各自的一级缓存
+     * @param key
      */
+    public void delete(String key){
+        delete(Collections.singletonList(key));
+    }
+
+    /**
+     * 批量删除缓存，DEL和通知其他节点的PUBLISH放在同一个管道中，redis执行失败时抛出异常
+     * 同时把每个key的版本号加一，正在用旧数据重建的线程写入时会被拒绝
+     * @param keys
+     */
+    public void delete(Collection<String> keys){
+        if(keys.isEmpty()){
+            return;
+        }
+        byte[] channel = CACHE_INVALIDATE_CHANNEL.getBytes(StandardCharsets.UTF_8);
+        cacheRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            for (String key : keys) {
+                byte[] rawKey = key.getBytes(StandardCharsets.UTF_8);
+                byte[] rawVersionKey = versionKey(key).getBytes(StandardCharsets.UTF_8);
+                connection.incr(rawVersionKey);
+                connection.del(rawKey);
+                connection.publish(channel, rawKey);
+            }
+            return null;
+        });
+        keys.forEach(localCache::invalidate);
+    }
 }
@@ -0,0 +1,16 @@
+package com.hmdp.utils;
+
+/**
+ * 缓存的编码器，负责把java对象和redis中的字节互相转换
+ */
+public interface CacheCodec {
+
+    /**
+     * 编码器的标识，会写入缓存的头部，读取时根据它选择编码器
+     */
+    byte id();
+
+    byte[] encode(Object value);
+
+    <R> R decode(byte[] bytes, Class<R> type);
+}
@@ -0,0 +1,32 @@
+package com.hmdp.utils;
+
+import org.springframework.boot.actuate.endpoint.annotation.Endpoint;
+import org.springframework.boot.actuate.endpoint.annotation.ReadOperation;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.Resource;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * actuator的缓存端点：/actuator/cache
+ * 按key前缀展示命中、空值、逻辑过期、未命中、重建的次数和redis查询、解码、数据库查询的耗时
+ * 耗时的分位数直方图通过/actuator/metrics/cache.redis.get等指标查看
+ */
+@Component
+@Endpoint(id = "cache")
+public class CacheEndpoint {
+
+    @Resource
+    private CacheMetrics cacheMetrics;
+    @Resource
+    private LocalCache localCache;
+
+    @ReadOperation
+    public Map<String, Object> cache() {
+        Map<String, Object> cache = new HashMap<>();
+        cache.put("localSize", localCache.estimatedSize());
+        cache.put("prefixes", cacheMetrics.summary());
+        return cache;
+    }
+}
@@ -0,0 +1,27 @@
+package com.hmdp.utils;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.data.redis.connection.Message;
+import org.springframework.data.redis.connection.MessageListener;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.Resource;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * 订阅缓存失效频道，其他节点删除缓存后，把本节点一级缓存中对应的key也删掉
+ */
+@Slf4j
+@Component
+public class CacheInvalidationListener implements MessageListener {
+
+    @Resource
+    private LocalCache localCache;
+
+    @Override
+    public void onMessage(Message message, byte[] pattern) {
+        String key = new String(message.getBody(), StandardCharsets.UTF_8);
+        log.debug("收到缓存失效消息:{}", key);
+        localCache.invalidate(key);
+    }
+}
@@ -0,0 +1,169 @@
+package com.hmdp.utils;
+
+import com.baomidou.mybatisplus.core.conditions.query.QueryWrapper;
+import com.baomidou.mybatisplus.core.conditions.update.UpdateWrapper;
+import com.hmdp.entity.CacheInvalidation;
+import com.hmdp.mapper.CacheInvalidationMapper;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import javax.annotation.PreDestroy;
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+/**
+ * 基于本地消息表的缓存失效
+ * 业务在同一个事务中写入失效记录，事务提交后立即删除一次缓存，再延迟删除第二次（延迟双删），
+ * 覆盖提交前读到旧数据、在第一次删除后才写回缓存的并发查询
+ * 提交后的删除失败或者节点宕机时，由定时任务扫描到期的记录重试，删除是幂等的，多个节点重复执行没有影响
+ * next_time只用数据库的时钟（NOW(3)）写入和比较，和各个节点的时钟、时区无关，精确到毫秒
+ */
+@Slf4j
+@Component
+public class CacheInvalidator {
+
+    private static final int STAGE_FIRST = 0;
+    private static final int STAGE_SECOND = 1;
+
+    //失败重试的最大间隔，秒
+    private static final int MAX_BACKOFF_SECONDS = 60;
+
+    private final CacheInvalidationMapper cacheInvalidationMapper;
+    private final CacheClient cacheClient;
+
+    //第二次删除的延迟，毫秒
+    private final long delayMillis;
+    //定时任务每次处理的记录数
+    private final int batchSize;
+
+    //事务提交后的第一次删除不占用业务线程
+    private final ExecutorService invalidateExecutor = Executors.newSingleThreadExecutor();
+
+    //从写入失效记录到第一次删除成功的时间，包括事务剩余的执行时间
+    private final Timer lagTimer;
+    private final Counter failureCounter;
+
+    public CacheInvalidator(CacheInvalidationMapper cacheInvalidationMapper, CacheClient cacheClient, MeterRegistry meterRegistry,
+                            @Value("${hmdp.cache.invalidation.delay-millis:500}") long delayMillis,
+                            @Value("${hmdp.cache.invalidation.batch-size:200}") int batchSize) {
+        this.cacheInvalidationMapper = cacheInvalidationMapper;
+        this.cacheClient = cacheClient;
+        this.delayMillis = delayMillis;
+        this.batchSize = batchSize;
+        this.lagTimer = Timer.builder("cache.invalidation.lag")
+                .publishPercentiles(0.5, 0.99)
+                .publishPercentileHistogram()
+                .register(meterRegistry);
+        this.failureCounter = Counter.builder("cache.invalidation.failures").register(meterRegistry);
+    }
+
+    /**
+     * 记录要删除的缓存，必须在修改数据库的事务中调用，事务提交后才会删除缓存，回滚时什么都不做
+     * 没有事务时直接删除
+     * @param key
+     */
+    public void invalidate(String key) {
+        LocalDateTime now = LocalDateTime.now();
+        CacheInvalidation record = new CacheInvalidation()
+                .setCacheKey(key)
+                .setStage(STAGE_FIRST)
+                .setRetryCount(0)
+                .setCreateTime(now);
+        cacheInvalidationMapper.insert(record);
+        if (!TransactionSynchronizationManager.isSynchronizationActive()) {
+            apply(Collections.singletonList(record));
+            return;
+        }
+        TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+            @Override
+            public void afterCommit() {
+                invalidateExecutor.execute(() -> apply(Collections.singletonList(record)));
+            }
+        });
+    }
+
+    /**
+     * 扫描到期的记录：提交后没有删除成功的、等待第二次删除的、需要重试的
+     */
+    @Scheduled(fixedDelayString = "${hmdp.cache.invalidation.poll-interval:1000}")
+    public void poll() {
+        List<CacheInvalidation> records;
+        do {
+            records = cacheInvalidationMapper.selectList(new QueryWrapper<CacheInvalidation>()
+                    .apply("next_time <= NOW(3)")
+                    .orderByAsc("id")
+                    .last("limit " + batchSize));
+            if (!records.isEmpty() && !apply(records)) {
+                //redis不可用，等下一次调度
+                return;
+            }
+        } while (records.size() == batchSize);
+    }
+
+    @PreDestroy
+    public void shutdown() throws InterruptedException {
+        invalidateExecutor.shutdown();
+        invalidateExecutor.awaitTermination(5, TimeUnit.SECONDS);
+    }
+
+    /**
+     * 用一次管道删除这批缓存，第一次删除的记录改为等待第二次删除，第二次删除的记录直接删掉
+     * @return 是否删除成功
+     */
+    private boolean apply(List<CacheInvalidation> records) {
+        try {
+            cacheClient.delete(records.stream().map(CacheInvalidation::getCacheKey).distinct().collect(Collectors.toList()));
+        } catch (Exception e) {
+            failureCounter.increment();
+            log.error("删除缓存失败，{}条记录等待重试", records.size(), e);
+            //失败的记录按重试次数指数退避
+            cacheInvalidationMapper.update(null, new UpdateWrapper<CacheInvalidation>()
+                    .setSql("retry_count = retry_count + 1")
+                    .setSql("next_time = DATE_ADD(NOW(3), INTERVAL LEAST(POW(2, retry_count), " + MAX_BACKOFF_SECONDS + ") SECOND)")
+                    .in("id", ids(records)));
+            return false;
+        }
+        LocalDateTime now = LocalDateTime.now();
+        List<Long> firstIds = new ArrayList<>();
+        List<Long> secondIds = new ArrayList<>();
+        for (CacheInvalidation record : records) {
+            if (record.getStage() == STAGE_FIRST) {
+                firstIds.add(record.getId());
+                lagTimer.record(Duration.between(record.getCreateTime(), now));
+            } else {
+                secondIds.add(record.getId());
+            }
+        }
+        if (!firstIds.isEmpty()) {
+            //只更新还在等待第一次删除的记录，定时任务和提交后的删除同时处理一条记录时不会把它推迟
+            cacheInvalidationMapper.update(null, new UpdateWrapper<CacheInvalidation>()
+                    .set("stage", STAGE_SECOND)
+                    .set("retry_count", 0)
+                    .setSql("next_time = DATE_ADD(NOW(3), INTERVAL " + TimeUnit.MILLISECONDS.toMicros(delayMillis) + " MICROSECOND)")
+                    .in("id", firstIds)
+                    .eq("stage", STAGE_FIRST));
+        }
+        if (!secondIds.isEmpty()) {
+            cacheInvalidationMapper.deleteBatchIds(secondIds);
+        }
+        return true;
+    }
+
+    private List<Long> ids(List<CacheInvalidation> records) {
+        return records.stream().map(CacheInvalidation::getId).collect(Collectors.toList());
+    }
+}
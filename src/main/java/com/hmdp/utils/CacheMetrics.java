@@ -0,0 +1,184 @@
+package com.hmdp.utils;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import org.springframework.stereotype.Component;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+/**
+ * CacheClient的监控指标，按key前缀统计
+ * cache.gets：查询结果，result为hit（命中）、stale（命中逻辑过期的旧数据）、null（命中空值）、miss（未命中）、
+ * rejected（被布隆过滤器拦截），tier为local（一级缓存）或redis
+ * cache.rebuilds：缓存重建，result为started、lock_failed、rejected（重建线程池已满）、version_conflict（查询期间数据被修改，放弃写入）、error
+ * cache.redis.get / cache.decode / cache.db.load：redis查询、解码、数据库查询的耗时分布
+ */
+@Component
+public class CacheMetrics {
+
+    public static final String LOCAL = "local";
+    public static final String REDIS = "redis";
+
+    private final MeterRegistry meterRegistry;
+
+    //Counter和Timer每次查找都要拼tag，按名称和tag缓存起来
+    private final Map<String, Counter> counters = new ConcurrentHashMap<>();
+    private final Map<String, Timer> timers = new ConcurrentHashMap<>();
+
+    public CacheMetrics(MeterRegistry meterRegistry) {
+        this.meterRegistry = meterRegistry;
+    }
+
+    public void hit(String keyPrefix, String tier) {
+        get(keyPrefix, "hit", tier);
+    }
+
+    public void stale(String keyPrefix, String tier) {
+        get(keyPrefix, "stale", tier);
+    }
+
+    public void nullHit(String keyPrefix, String tier) {
+        get(keyPrefix, "null", tier);
+    }
+
+    public void miss(String keyPrefix) {
+        get(keyPrefix, "miss", REDIS);
+    }
+
+    /**
+     * redis中的值无法解码（未知的编码器、数据损坏），按未命中处理
+     */
+    public void undecodable(String keyPrefix) {
+        get(keyPrefix, "undecodable", REDIS);
+    }
+
+    public void rejected(String keyPrefix) {
+        get(keyPrefix, "rejected", LOCAL);
+    }
+
+    public void rebuild(String keyPrefix) {
+        rebuild(keyPrefix, "started");
+    }
+
+    public void lockFailed(String keyPrefix) {
+        rebuild(keyPrefix, "lock_failed");
+    }
+
+    public void rebuildError(String keyPrefix) {
+        rebuild(keyPrefix, "error");
+    }
+
+    public void rebuildRejected(String keyPrefix) {
+        rebuild(keyPrefix, "rejected");
+    }
+
+    public void versionConflict(String keyPrefix) {
+        rebuild(keyPrefix, "version_conflict");
+    }
+
+    /**
+     * 等待同一个key的其他线程加载超时
+     */
+    public void waitTimeout(String keyPrefix) {
+        rebuild(keyPrefix, "wait_timeout");
+    }
+
+    public <T> T timeRedisGet(String keyPrefix, Supplier<T> supplier) {
+        return timer("cache.redis.get", keyPrefix).record(supplier);
+    }
+
+    /**
+     * 记录异步查询redis的耗时
+     */
+    public void recordRedisGet(String keyPrefix, long nanos) {
+        timer("cache.redis.get", keyPrefix).record(nanos, TimeUnit.NANOSECONDS);
+    }
+
+    public <T> T timeDecode(String keyPrefix, Supplier<T> supplier) {
+        return timer("cache.decode", keyPrefix).record(supplier);
+    }
+
+    public <T> T timeDbLoad(String keyPrefix, Supplier<T> supplier) {
+        return timer("cache.db.load", keyPrefix).record(supplier);
+    }
+
+    /**
+     * 记录数据库查询耗时，用于需要自己计时的地方（例如还要把耗时写入缓存）
+     */
+    public void recordDbLoad(String keyPrefix, long millis) {
+        timer("cache.db.load", keyPrefix).record(millis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * 按key前缀汇总的计数和耗时，供actuator的cache端点展示
+     */
+    public Map<String, Map<String, Object>> summary() {
+        Map<String, Map<String, Object>> summary = new TreeMap<>();
+        meterRegistry.find("cache.gets").counters().forEach(c -> {
+            Map<String, Object> prefix = summary.computeIfAbsent(c.getId().getTag("prefix"), k -> new TreeMap<>());
+            String name = c.getId().getTag("result") + "." + c.getId().getTag("tier");
+            prefix.put(name, (long) c.count());
+        });
+        meterRegistry.find("cache.rebuilds").counters().forEach(c -> {
+            Map<String, Object> prefix = summary.computeIfAbsent(c.getId().getTag("prefix"), k -> new TreeMap<>());
+            prefix.put("rebuild." + c.getId().getTag("result"), (long) c.count());
+        });
+        for (String name : new String[]{"cache.redis.get", "cache.decode", "cache.db.load"}) {
+            meterRegistry.find(name).timers().forEach(t -> {
+                Map<String, Object> prefix = summary.computeIfAbsent(t.getId().getTag("prefix"), k -> new TreeMap<>());
+                Map<String, Object> latency = new HashMap<>();
+                latency.put("count", t.count());
+                latency.put("meanMillis", t.mean(TimeUnit.MILLISECONDS));
+                latency.put("maxMillis", t.max(TimeUnit.MILLISECONDS));
+                prefix.put(name.substring("cache.".length()), latency);
+            });
+        }
+        //命中率：一级缓存和redis的命中（包括空值和逻辑过期的旧数据）占所有查询的比例
+        summary.values().forEach(prefix -> {
+            long hits = 0;
+            long total = 0;
+            for (Map.Entry<String, Object> e : prefix.entrySet()) {
+                if (!(e.getValue() instanceof Long) || e.getKey().startsWith("rebuild.") || e.getKey().startsWith("rejected.")) {
+                    continue;
+                }
+                total += (Long) e.getValue();
+                if (!e.getKey().startsWith("miss.")) {
+                    hits += (Long) e.getValue();
+                }
+            }
+            prefix.put("hitRatio", total == 0 ? 0D : (double) hits / total);
+        });
+        return summary;
+    }
+
+    private void get(String keyPrefix, String result, String tier) {
+        counters.computeIfAbsent("cache.gets:" + keyPrefix + ":" + result + ":" + tier,
+                k -> Counter.builder("cache.gets")
+                        .tag("prefix", keyPrefix).tag("result", result).tag("tier", tier)
+                        .register(meterRegistry))
+                .increment();
+    }
+
+    private void rebuild(String keyPrefix, String result) {
+        counters.computeIfAbsent("cache.rebuilds:" + keyPrefix + ":" + result,
+                k -> Counter.builder("cache.rebuilds")
+                        .tag("prefix", keyPrefix).tag("result", result)
+                        .register(meterRegistry))
+                .increment();
+    }
+
+    private Timer timer(String name, String keyPrefix) {
+        return timers.computeIfAbsent(name + ":" + keyPrefix,
+                k -> Timer.builder(name)
+                        .tag("prefix", keyPrefix)
+                        .publishPercentiles(0.5, 0.99)
+                        .publishPercentileHistogram()
+                        .register(meterRegistry));
+    }
+}
@@ -0,0 +1,116 @@
+package com.hmdp.utils;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PreDestroy;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 缓存重建的线程池，线程数和队列长度都有上限
+ * 同一个key在队列中或正在重建时不再重复提交；队列满时直接拒绝，调用方放弃这次重建，继续返回旧数据
+ * 容器关闭时停止接收新任务，等待已提交的任务执行完
+ */
+@Slf4j
+@Component
+public class CacheRebuildExecutor {
+
+    private final ThreadPoolExecutor executor;
+
+    //已提交还没有执行完的key
+    private final Set<String> pendingKeys = ConcurrentHashMap.newKeySet();
+
+    private final long awaitTerminationSeconds;
+
+    private final Counter rejectedCounter;
+    //从提交到开始执行的时间
+    private final Timer waitTimer;
+    //从提交到执行完的时间
+    private final Timer latencyTimer;
+
+    public CacheRebuildExecutor(MeterRegistry meterRegistry,
+                                @Value("${hmdp.cache.rebuild.core-size:4}") int coreSize,
+                                @Value("${hmdp.cache.rebuild.max-size:10}") int maxSize,
+                                @Value("${hmdp.cache.rebuild.queue-capacity:1000}") int queueCapacity,
+                                @Value("${hmdp.cache.rebuild.await-termination-seconds:10}") long awaitTerminationSeconds) {
+        AtomicInteger threadNumber = new AtomicInteger();
+        //队列满了之后才会创建超过核心数的线程，再满就拒绝
+        this.executor = new ThreadPoolExecutor(coreSize, maxSize, 60, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<>(queueCapacity),
+                r -> new Thread(r, "cache-rebuild-" + threadNumber.incrementAndGet()),
+                new ThreadPoolExecutor.AbortPolicy());
+        this.awaitTerminationSeconds = awaitTerminationSeconds;
+
+        Gauge.builder("cache.rebuild.queue.size", executor, e -> e.getQueue().size()).register(meterRegistry);
+        Gauge.builder("cache.rebuild.active", executor, ThreadPoolExecutor::getActiveCount).register(meterRegistry);
+        Gauge.builder("cache.rebuild.pool.size", executor, ThreadPoolExecutor::getPoolSize).register(meterRegistry);
+        this.rejectedCounter = Counter.builder("cache.rebuild.rejected").register(meterRegistry);
+        this.waitTimer = Timer.builder("cache.rebuild.wait").publishPercentiles(0.5, 0.99).register(meterRegistry);
+        this.latencyTimer = Timer.builder("cache.rebuild.latency").publishPercentiles(0.5, 0.99).register(meterRegistry);
+    }
+
+    /**
+     * 提交一个key的重建任务
+     * @return 没有提交时返回false：这个key已经在重建、队列已满或者正在关闭
+     */
+    public boolean submit(String key, Runnable task) {
+        return submit(Collections.singletonList(key), task);
+    }
+
+    /**
+     * 提交合并了多个key的重建任务，其中任意一个key已经在重建时整个任务都不提交
+     * @return 没有提交时返回false
+     */
+    public boolean submit(Collection<String> keys, Runnable task) {
+        int added = 0;
+        for (String key : keys) {
+            if (!pendingKeys.add(key)) {
+                break;
+            }
+            added++;
+        }
+        if (added < keys.size()) {
+            //撤销这次加入的key
+            keys.stream().limit(added).forEach(pendingKeys::remove);
+            return false;
+        }
+        long submitTime = System.nanoTime();
+        try {
+            executor.execute(() -> {
+                waitTimer.record(System.nanoTime() - submitTime, TimeUnit.NANOSECONDS);
+                try {
+                    task.run();
+                } catch (Exception e) {
+                    log.error("缓存重建任务执行失败，keys:{}", keys, e);
+                } finally {
+                    pendingKeys.removeAll(keys);
+                    latencyTimer.record(System.nanoTime() - submitTime, TimeUnit.NANOSECONDS);
+                }
+            });
+            return true;
+        } catch (RejectedExecutionException e) {
+            pendingKeys.removeAll(keys);
+            rejectedCounter.increment();
+            log.warn("缓存重建队列已满，放弃重建，keys:{}", keys);
+            return false;
+        }
+    }
+
+    @PreDestroy
+    public void shutdown() throws InterruptedException {
+        executor.shutdown();
+        if (!executor.awaitTermination(awaitTerminationSeconds, TimeUnit.SECONDS)) {
+            //重建任务持有的互斥锁会在过期后自动释放
+            log.warn("缓存重建线程池关闭超时，丢弃{}个未执行的任务", executor.shutdownNow().size());
+        }
+    }
+}
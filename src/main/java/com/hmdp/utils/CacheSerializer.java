@@ -0,0 +1,249 @@
+package com.hmdp.utils;
+
+import cn.hutool.json.JSONObject;
+import cn.hutool.json.JSONUtil;
+import net.jpountz.lz4.LZ4Compressor;
+import net.jpountz.lz4.LZ4Factory;
+import net.jpountz.lz4.LZ4FastDecompressor;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * 负责缓存值和redis中字节的转换
+ * 二进制格式为固定长度的头部加上编码后的数据：
+ * 版本1：[格式版本 1字节][标志位 1字节][编码器id 1字节][逻辑过期时间 8字节][原始长度 4字节][数据]
+ * 版本2：[格式版本 1字节][标志位 1字节][编码器id 1字节][逻辑过期时间 8字节][重建耗时 4字节][原始长度 4字节][数据]
+ * 版本3：[格式版本 1字节][标志位 1字节][编码器id 1字节][逻辑过期时间 8字节][版本号 8字节][重建耗时 4字节][原始长度 4字节][数据]
+ * 版本号的位置固定（第12到19字节），写入缓存的lua脚本据此拒绝用旧版本覆盖新版本
+ * 逻辑过期时间放在头部，不用解码数据就能判断是否过期；数据超过阈值时使用lz4压缩
+ * 第一个字节不是格式版本的值按改造前的json文本读取，可以先用legacy写入，所有节点升级后再切换为二进制，实现滚动迁移
+ */
+@Component
+public class CacheSerializer {
+
+    public static final byte FORMAT_VERSION_1 = 1;
+    public static final byte FORMAT_VERSION_2 = 2;
+    public static final byte FORMAT_VERSION = 3;
+    private static final int HEADER_LENGTH_1 = 15;
+    private static final int HEADER_LENGTH_2 = 19;
+    public static final int HEADER_LENGTH = 27;
+
+    private static final byte FLAG_LZ4 = 1;
+    //lz4最大的压缩比约为255，原始长度超过压缩数据的255倍一定是损坏的数据
+    private static final int LZ4_MAX_RATIO = 255;
+    //原始数据的最大长度，超过的按损坏处理，不分配这么大的数组
+    private static final int MAX_RAW_LENGTH = 64 * 1024 * 1024;
+
+    private final CacheCodec[] codecs = {new JsonCacheCodec(), new SmileCacheCodec()};
+
+    //为null表示按改造前的json文本写入
+    private final CacheCodec writeCodec;
+
+    private final int compressThreshold;
+
+    private final LZ4Compressor compressor = LZ4Factory.fastestInstance().fastCompressor();
+    private final LZ4FastDecompressor decompressor = LZ4Factory.fastestInstance().fastDecompressor();
+
+    public CacheSerializer(@Value("${hmdp.cache.codec:smile}") String codec,
+                           @Value("${hmdp.cache.compress-threshold:1024}") int compressThreshold) {
+        switch (codec) {
+            case "legacy":
+                this.writeCodec = null;
+                break;
+            case "json":
+                this.writeCodec = codecs[JsonCacheCodec.ID];
+                break;
+            case "smile":
+                this.writeCodec = codecs[SmileCacheCodec.ID];
+                break;
+            default:
+                throw new IllegalArgumentException("不支持的缓存编码:" + codec);
+        }
+        this.compressThreshold = compressThreshold;
+    }
+
+    /**
+     * 编码普通缓存
+     */
+    public byte[] write(Object value) {
+        return write(value, 0L);
+    }
+
+    /**
+     * 编码普通缓存，带上版本号
+     */
+    public byte[] write(Object value, long version) {
+        if (writeCodec == null) {
+            return JSONUtil.toJsonStr(value).getBytes(StandardCharsets.UTF_8);
+        }
+        return encode(value, 0L, version, 0);
+    }
+
+    /**
+     * 编码带逻辑过期时间的缓存
+     * @param expireTime 逻辑过期时间，毫秒时间戳
+     */
+    public byte[] writeLogical(Object value, long expireTime) {
+        return writeLogical(value, expireTime, 0);
+    }
+
+    /**
+     * 编码带逻辑过期时间的缓存
+     * @param expireTime 逻辑过期时间，毫秒时间戳
+     * @param rebuildCost 本次重建花费的毫秒数，用于提前概率刷新
+     */
+    public byte[] writeLogical(Object value, long expireTime, int rebuildCost) {
+        return writeLogical(value, expireTime, rebuildCost, 0L);
+    }
+
+    /**
+     * 编码带逻辑过期时间的缓存
+     * @param version 查询数据库之前读到的版本号
+     */
+    public byte[] writeLogical(Object value, long expireTime, int rebuildCost, long version) {
+        if (writeCodec == null) {
+            RedisData redisData = new RedisData();
+            redisData.setData(value);
+            redisData.setExpireTime(expireTime);
+            redisData.setRebuildCost(rebuildCost);
+            redisData.setVersion(version);
+            return JSONUtil.toJsonStr(redisData).getBytes(StandardCharsets.UTF_8);
+        }
+        return encode(value, expireTime, version, rebuildCost);
+    }
+
+    /**
+     * 解码普通缓存
+     */
+    public <R> R read(byte[] bytes, Class<R> type) {
+        if (!isBinary(bytes)) {
+            return JSONUtil.toBean(new String(bytes, StandardCharsets.UTF_8), type);
+        }
+        return decode(bytes, type);
+    }
+
+    /**
+     * 解码带逻辑过期时间的缓存，数据直接解码为指定类型，只解析一次
+     */
+    public <R> RedisData readLogical(byte[] bytes, Class<R> type) {
+        RedisData redisData;
+        if (!isBinary(bytes)) {
+            redisData = JSONUtil.toBean(new String(bytes, StandardCharsets.UTF_8), RedisData.class);
+            redisData.setData(JSONUtil.toBean((JSONObject) redisData.getData(), type));
+            return redisData;
+        }
+        redisData = new RedisData();
+        redisData.setExpireTime(expireTimeOf(bytes));
+        if (bytes[0] == FORMAT_VERSION_2) {
+            redisData.setRebuildCost(ByteBuffer.wrap(bytes, 11, 4).getInt());
+        } else if (bytes[0] == FORMAT_VERSION) {
+            redisData.setVersion(ByteBuffer.wrap(bytes, 11, 8).getLong());
+            redisData.setRebuildCost(ByteBuffer.wrap(bytes, 19, 4).getInt());
+        }
+        redisData.setData(decode(bytes, type));
+        return redisData;
+    }
+
+    /**
+     * 只读取逻辑过期时间，二进制格式不需要解码数据
+     */
+    public long expireTimeOf(byte[] bytes) {
+        if (!isBinary(bytes)) {
+            return JSONUtil.toBean(new String(bytes, StandardCharsets.UTF_8), RedisData.class).getExpireTime();
+        }
+        return ByteBuffer.wrap(bytes, 3, 8).getLong();
+    }
+
+    /**
+     * 当前节点能否解码：json文本都可以，二进制格式检查编码器id、标志位和原始长度
+     * 其他节点用更新的编码器写入或者数据损坏时返回false，调用方按未命中处理
+     */
+    public boolean canDecode(byte[] bytes) {
+        if (!isBinary(bytes)) {
+            return true;
+        }
+        byte flags = bytes[1];
+        byte codecId = bytes[2];
+        if (codecId < 0 || codecId >= codecs.length || (flags & ~FLAG_LZ4) != 0) {
+            return false;
+        }
+        int headerLength = headerLength(bytes[0]);
+        int rawLength = ByteBuffer.wrap(bytes, headerLength - 4, 4).getInt();
+        int payloadLength = bytes.length - headerLength;
+        if ((flags & FLAG_LZ4) == 0) {
+            return rawLength == payloadLength;
+        }
+        //压缩的数据解压前无法知道确切的长度，只检查原始长度在合理的范围内
+        return payloadLength > 0 && rawLength > 0 && rawLength <= MAX_RAW_LENGTH
+                && rawLength <= (long) payloadLength * LZ4_MAX_RATIO;
+    }
+
+    private boolean isBinary(byte[] bytes) {
+        return bytes.length >= headerLength(bytes[0]);
+    }
+
+    /**
+     * 格式版本对应的头部长度，不是格式版本的值返回Integer.MAX_VALUE
+     */
+    private int headerLength(byte formatVersion) {
+        switch (formatVersion) {
+            case FORMAT_VERSION_1:
+                return HEADER_LENGTH_1;
+            case FORMAT_VERSION_2:
+                return HEADER_LENGTH_2;
+            case FORMAT_VERSION:
+                return HEADER_LENGTH;
+            default:
+                return Integer.MAX_VALUE;
+        }
+    }
+
+    private byte[] encode(Object value, long expireTime, long version, int rebuildCost) {
+        byte[] raw = writeCodec.encode(value);
+        byte flags = 0;
+        byte[] payload = raw;
+        int payloadLength = raw.length;
+        if (raw.length >= compressThreshold) {
+            byte[] compressed = new byte[compressor.maxCompressedLength(raw.length)];
+            int compressedLength = compressor.compress(raw, 0, raw.length, compressed, 0, compressed.length);
+            //压缩后没有变小就保存原始数据
+            if (compressedLength < raw.length) {
+                flags |= FLAG_LZ4;
+                payload = compressed;
+                payloadLength = compressedLength;
+            }
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(HEADER_LENGTH + payloadLength);
+        buffer.put(FORMAT_VERSION)
+                .put(flags)
+                .put(writeCodec.id())
+                .putLong(expireTime)
+                .putLong(version)
+                .putInt(rebuildCost)
+                .putInt(raw.length)
+                .put(payload, 0, payloadLength);
+        return buffer.array();
+    }
+
+    private <R> R decode(byte[] bytes, Class<R> type) {
+        byte flags = bytes[1];
+        if (bytes[2] < 0 || bytes[2] >= codecs.length) {
+            throw new IllegalArgumentException("未知的缓存编码器:" + bytes[2]);
+        }
+        CacheCodec codec = codecs[bytes[2]];
+        int headerLength = headerLength(bytes[0]);
+        int rawLength = ByteBuffer.wrap(bytes, headerLength - 4, 4).getInt();
+        byte[] raw;
+        if ((flags & FLAG_LZ4) != 0) {
+            raw = new byte[rawLength];
+            decompressor.decompress(bytes, headerLength, raw, 0, rawLength);
+        } else {
+            raw = Arrays.copyOfRange(bytes, headerLength, bytes.length);
+        }
+        return codec.decode(raw, type);
+    }
+}
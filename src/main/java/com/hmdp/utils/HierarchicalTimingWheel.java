@@ -0,0 +1,134 @@
+package com.hmdp.utils;
+
+import java.util.function.Consumer;
+
+/**
+ * 分层时间轮：第一层每格tickMillis，共wheelSize格，超出这一层范围的任务放到上一层，上一层每格的时间是下一层一圈的时间，需要时才创建
+ * 添加任务只计算格子的下标并放入格子的链表，时间复杂度O(1)，和任务数无关；
+ * 时间每推进一格，每一层只检查当前的一个格子，上层的格子到期时把其中的任务重新放到下层，最后在第一层到期
+ * 到期时间按格向上取整，任务最多晚一格执行，不会提前
+ * 不是线程安全的，由调用方加锁
+ */
+public class HierarchicalTimingWheel<T> {
+
+    private final long tickMillis;
+    private final int wheelSize;
+    //这一层转一圈的时间
+    private final long interval;
+    private final Bucket<T>[] buckets;
+    //这一层的当前时间，是tickMillis的整数倍
+    private long currentTime;
+    //上一层时间轮
+    private HierarchicalTimingWheel<T> overflowWheel;
+
+    @SuppressWarnings("unchecked")
+    public HierarchicalTimingWheel(long tickMillis, int wheelSize, long startMillis) {
+        this.tickMillis = tickMillis;
+        this.wheelSize = wheelSize;
+        this.interval = tickMillis * wheelSize;
+        this.buckets = new Bucket[wheelSize];
+        for (int i = 0; i < wheelSize; i++) {
+            buckets[i] = new Bucket<>();
+        }
+        this.currentTime = startMillis - startMillis % tickMillis;
+    }
+
+    /**
+     * 添加一个任务
+     * @param deadline 到期时间，毫秒时间戳
+     * @return 已经到期时不添加，返回false，由调用方立即执行
+     */
+    public boolean add(long deadline, T task) {
+        //向上取整到格子的边界
+        return add(new Entry<>(deadline + tickMillis - 1, task));
+    }
+
+    /**
+     * 把时间推进到now，一格一格地推进，期间到期的任务依次交给expired
+     */
+    public void advance(long now, Consumer<T> expired) {
+        while (currentTime + tickMillis <= now) {
+            long time = currentTime + tickMillis;
+            advanceClock(time);
+            flush(time, this, expired);
+        }
+    }
+
+    private boolean add(Entry<T> entry) {
+        if (entry.expiration < currentTime + tickMillis) {
+            return false;
+        }
+        if (entry.expiration < currentTime + interval) {
+            //按到期时间所在的格子放入，同一个格子的任务到期时间都在[格子的开始时间, 开始时间+tickMillis)
+            long virtualId = entry.expiration / tickMillis;
+            buckets[(int) (virtualId % wheelSize)].add(entry, virtualId * tickMillis);
+            return true;
+        }
+        if (overflowWheel == null) {
+            overflowWheel = new HierarchicalTimingWheel<>(interval, wheelSize, currentTime);
+        }
+        return overflowWheel.add(entry);
+    }
+
+    private void advanceClock(long time) {
+        if (time >= currentTime + tickMillis) {
+            currentTime = time - time % tickMillis;
+            if (overflowWheel != null) {
+                overflowWheel.advanceClock(currentTime);
+            }
+        }
+    }
+
+    /**
+     * 从最上层开始处理到期的格子：上层的任务可能放回下层当前的格子，所以下层后处理
+     */
+    private void flush(long time, HierarchicalTimingWheel<T> root, Consumer<T> expired) {
+        if (overflowWheel != null) {
+            overflowWheel.flush(time, root, expired);
+        }
+        Bucket<T> bucket = buckets[(int) ((time / tickMillis) % wheelSize)];
+        if (bucket.expiration > time) {
+            return;
+        }
+        Entry<T> entry = bucket.clear();
+        while (entry != null) {
+            Entry<T> next = entry.next;
+            entry.next = null;
+            //从第一层重新添加，还没到期的放到下层对应的格子
+            if (!root.add(entry)) {
+                expired.accept(entry.task);
+            }
+            entry = next;
+        }
+    }
+
+    private static class Bucket<T> {
+        //格子的开始时间，没有任务时为Long.MAX_VALUE
+        private long expiration = Long.MAX_VALUE;
+        private Entry<T> head;
+
+        private void add(Entry<T> entry, long expiration) {
+            entry.next = head;
+            head = entry;
+            this.expiration = expiration;
+        }
+
+        private Entry<T> clear() {
+            Entry<T> entries = head;
+            head = null;
+            expiration = Long.MAX_VALUE;
+            return entries;
+        }
+    }
+
+    private static class Entry<T> {
+        private final long expiration;
+        private final T task;
+        private Entry<T> next;
+
+        private Entry(long expiration, T task) {
+            this.expiration = expiration;
+            this.task = task;
+        }
+    }
+}
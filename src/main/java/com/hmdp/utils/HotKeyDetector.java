@@ -0,0 +1,148 @@
+package com.hmdp.utils;
+
+import cn.hutool.core.lang.hash.MurmurHash;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.function.Consumer;
+
+/**
+ * 热点key探测：用count-min sketch统计每个key的访问次数，每个时间窗口所有计数减半（衰减）
+ * 计数稳定后约等于 qps * 窗口秒数 * 2，由此估算每个key的qps
+ * qps超过阈值的key升级为热点key，降到阈值的一半以下时降级，降级时通知监听者（例如删除一级缓存）
+ */
+@Slf4j
+@Component
+public class HotKeyDetector {
+
+    //sketch的行数和每行的计数器个数，估算误差约为 总访问次数 * e / WIDTH
+    private static final int DEPTH = 4;
+    private static final int WIDTH = 1 << 14;
+
+    private final AtomicLongArray counters = new AtomicLongArray(DEPTH * WIDTH);
+
+    //当前的热点key和估算的qps
+    private final Map<String, Double> hotKeys = new ConcurrentHashMap<>();
+
+    private final List<Consumer<String>> demoteListeners = new CopyOnWriteArrayList<>();
+
+    private final boolean enabled;
+    private final double threshold;
+    private final long windowMillis;
+    private final int topK;
+
+    public HotKeyDetector(@Value("${hmdp.cache.hot-key.enabled:true}") boolean enabled,
+                          @Value("${hmdp.cache.hot-key.threshold:100}") double threshold,
+                          @Value("${hmdp.cache.hot-key.window-millis:1000}") long windowMillis,
+                          @Value("${hmdp.cache.hot-key.top-k:20}") int topK) {
+        this.enabled = enabled;
+        this.threshold = threshold;
+        this.windowMillis = windowMillis;
+        this.topK = topK;
+    }
+
+    /**
+     * 记录一次访问，估算的qps超过阈值时升级为热点key
+     */
+    public void record(String key) {
+        if (!enabled) {
+            return;
+        }
+        long hash = MurmurHash.hash64(key.getBytes(StandardCharsets.UTF_8));
+        int hash1 = (int) hash;
+        int hash2 = (int) (hash >>> 32);
+        long min = Long.MAX_VALUE;
+        for (int i = 0; i < DEPTH; i++) {
+            int index = i * WIDTH + ((hash1 + i * hash2) & (WIDTH - 1));
+            min = Math.min(min, counters.incrementAndGet(index));
+        }
+        if (!hotKeys.containsKey(key)) {
+            double rate = toRate(min);
+            if (rate >= threshold) {
+                hotKeys.put(key, rate);
+                log.info("发现热点key:{}，估算qps:{}", key, (long) rate);
+            }
+        }
+    }
+
+    public boolean isHot(String key) {
+        return hotKeys.containsKey(key);
+    }
+
+    /**
+     * 热点key降级时的回调，参数为降级的key
+     */
+    public void addDemoteListener(Consumer<String> listener) {
+        demoteListeners.add(listener);
+    }
+
+    /**
+     * 按估算的qps从高到低排列的前k个热点key
+     */
+    public List<Map<String, Object>> topKeys() {
+        List<Map.Entry<String, Double>> entries = new ArrayList<>(hotKeys.entrySet());
+        entries.sort(Map.Entry.<String, Double>comparingByValue().reversed());
+        List<Map<String, Object>> top = new ArrayList<>(Math.min(topK, entries.size()));
+        for (Map.Entry<String, Double> entry : entries.subList(0, Math.min(topK, entries.size()))) {
+            Map<String, Object> item = new LinkedHashMap<>();
+            item.put("key", entry.getKey());
+            item.put("qps", Math.round(entry.getValue()));
+            top.add(item);
+        }
+        return top;
+    }
+
+    /**
+     * 每个时间窗口重新估算热点key的qps，低于阈值一半的降级，然后衰减一次计数
+     * 升级和降级的阈值不同，避免qps在阈值附近波动时反复升降
+     */
+    @Scheduled(fixedRateString = "${hmdp.cache.hot-key.window-millis:1000}")
+    public void decay() {
+        if (!enabled) {
+            return;
+        }
+        //在衰减前估算，这时的计数是一个完整窗口结束时的值
+        for (String key : hotKeys.keySet()) {
+            double rate = toRate(estimate(key));
+            if (rate < threshold / 2) {
+                hotKeys.remove(key);
+                log.info("热点key降级:{}，估算qps:{}", key, (long) rate);
+                demoteListeners.forEach(listener -> listener.accept(key));
+            } else {
+                hotKeys.put(key, rate);
+            }
+        }
+        for (int i = 0; i < counters.length(); i++) {
+            long count = counters.get(i);
+            if (count != 0) {
+                //两次读写之间的少量访问可能丢失，对估算影响可以忽略
+                counters.set(i, count >> 1);
+            }
+        }
+    }
+
+    private long estimate(String key) {
+        long hash = MurmurHash.hash64(key.getBytes(StandardCharsets.UTF_8));
+        int hash1 = (int) hash;
+        int hash2 = (int) (hash >>> 32);
+        long min = Long.MAX_VALUE;
+        for (int i = 0; i < DEPTH; i++) {
+            min = Math.min(min, counters.get(i * WIDTH + ((hash1 + i * hash2) & (WIDTH - 1))));
+        }
+        return min;
+    }
+
+    /**
+     * 每个窗口减半时，计数稳定在 qps * 窗口秒数 * 2 附近
+     */
+    private double toRate(long count) {
+        return count * 1000D / (2 * windowMillis);
+    }
+}
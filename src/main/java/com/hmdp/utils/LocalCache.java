@@ -0,0 +1,174 @@
+package com.hmdp.utils;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.Expiry;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 进程内的一级缓存（L1），放在redis（L2）前面，保存redis中的字节，每次读取时解码出新的对象
+ * 不同的调用方拿到的是不同的对象，修改返回的对象（例如设置距离）不会影响其他调用方和缓存本身
+ * 容量按字节数计算，超过上限后按频率淘汰，写入后超过ttl自动失效
+ * admission为all时所有key都放入一级缓存；为hot时只放入热点key，使用更短的ttl，热点key降级时立即删除
+ */
+@Slf4j
+@Component
+public class LocalCache {
+
+    /**
+     * 空值占位，caffeine不允许保存null，用它表示数据库中不存在的数据
+     */
+    private static final byte[] NULL_VALUE = new byte[0];
+
+    private final Cache<String, Entry> cache;
+
+    private final HotKeyDetector hotKeyDetector;
+
+    private final CacheSerializer cacheSerializer;
+
+    //只缓存热点key
+    private final boolean hotOnly;
+
+    private final long ttlNanos;
+    private final long hotTtlNanos;
+
+    public LocalCache(HotKeyDetector hotKeyDetector, CacheSerializer cacheSerializer,
+                      @Value("${hmdp.cache.local.max-bytes:67108864}") long maxBytes,
+                      @Value("${hmdp.cache.local.ttl-seconds:30}") long ttlSeconds,
+                      @Value("${hmdp.cache.local.admission:all}") String admission,
+                      @Value("${hmdp.cache.hot-key.local-ttl-seconds:5}") long hotTtlSeconds) {
+        this.hotKeyDetector = hotKeyDetector;
+        this.cacheSerializer = cacheSerializer;
+        this.hotOnly = "hot".equals(admission);
+        this.ttlNanos = TimeUnit.SECONDS.toNanos(ttlSeconds);
+        this.hotTtlNanos = TimeUnit.SECONDS.toNanos(hotTtlSeconds);
+        this.cache = Caffeine.newBuilder()
+                //按字节数淘汰，而不是按个数
+                .maximumWeight(maxBytes)
+                .weigher((String key, Entry entry) -> entry.weight)
+                //每个entry写入时确定自己的有效期，更新时重新计算，读取不影响
+                .expireAfter(new Expiry<String, Entry>() {
+                    @Override
+                    public long expireAfterCreate(String key, Entry entry, long currentTime) {
+                        return entry.ttlNanos;
+                    }
+
+                    @Override
+                    public long expireAfterUpdate(String key, Entry entry, long currentTime, long currentDuration) {
+                        return entry.ttlNanos;
+                    }
+
+                    @Override
+                    public long expireAfterRead(String key, Entry entry, long currentTime, long currentDuration) {
+                        return currentDuration;
+                    }
+                })
+                .build();
+        if (hotOnly) {
+            hotKeyDetector.addDemoteListener(cache::invalidate);
+        }
+    }
+
+    /**
+     * 查询一级缓存
+     * @param key redis中的key
+     * @return 未命中返回null，命中空值返回的Entry中value为null
+     */
+    public Entry get(String key) {
+        return cache.getIfPresent(key);
+    }
+
+    /**
+     * 写入一级缓存
+     * @param key redis中的key
+     * @param bytes redis中的value，为null或者空数组时缓存空值
+     * @param expireTime 逻辑过期时间（毫秒时间戳），没有逻辑过期时传Long.MAX_VALUE，按普通缓存的格式解码
+     */
+    public void put(String key, byte[] bytes, long expireTime) {
+        put(key, bytes, expireTime, 0);
+    }
+
+    /**
+     * 写入一级缓存
+     * @param rebuildCost 上一次重建花费的毫秒数，用于提前概率刷新
+     */
+    public void put(String key, byte[] bytes, long expireTime, int rebuildCost) {
+        long ttl = ttlNanos;
+        if (hotOnly) {
+            //不是热点key不放入一级缓存
+            if (!hotKeyDetector.isHot(key)) {
+                return;
+            }
+            ttl = hotTtlNanos;
+        }
+        //key本身也占内存，算进权重里
+        byte[] value = bytes == null || bytes.length == 0 ? NULL_VALUE : bytes;
+        cache.put(key, new Entry(cacheSerializer, value, value.length + key.length(), expireTime, rebuildCost, ttl));
+    }
+
+    /**
+     * 使本地的一级缓存失效
+     * @param key redis中的key
+     */
+    public void invalidate(String key) {
+        cache.invalidate(key);
+    }
+
+    public long estimatedSize() {
+        return cache.estimatedSize();
+    }
+
+    public static class Entry {
+        private final CacheSerializer cacheSerializer;
+        private final byte[] value;
+        private final int weight;
+        private final long expireTime;
+        private final int rebuildCost;
+        private final long ttlNanos;
+
+        private Entry(CacheSerializer cacheSerializer, byte[] value, int weight, long expireTime, int rebuildCost, long ttlNanos) {
+            this.cacheSerializer = cacheSerializer;
+            this.value = value;
+            this.weight = weight;
+            this.expireTime = expireTime;
+            this.rebuildCost = rebuildCost;
+            this.ttlNanos = ttlNanos;
+        }
+
+        public boolean isNull() {
+            return value == NULL_VALUE;
+        }
+
+        /**
+         * 逻辑过期时间是否已经过了
+         */
+        public boolean isExpired() {
+            return expireTime < System.currentTimeMillis();
+        }
+
+        public long getExpireTime() {
+            return expireTime;
+        }
+
+        public int getRebuildCost() {
+            return rebuildCost;
+        }
+
+        /**
+         * 解码出一个新的对象，带逻辑过期时间的按逻辑过期的格式解码
+         */
+        public <R> R getValue(Class<R> type) {
+            if (isNull()) {
+                return null;
+            }
+            if (expireTime == Long.MAX_VALUE) {
+                return cacheSerializer.read(value, type);
+            }
+            return type.cast(cacheSerializer.readLogical(value, type).getData());
+        }
+    }
+}
@@ -0,0 +1,306 @@
+package com.hmdp.utils;
+
+import com.hmdp.entity.VoucherOrder;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PreDestroy;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+
+/**
+ * 本地的订单日志：订单消息发送失败时顺序追加到内存映射的文件中，由后台任务按顺序重新发送
+ * 每条记录：[长度 4][crc32 4][状态 1][订单 32]，先写crc、状态和订单，最后写长度，长度为0的位置是还没有写入的部分
+ * 发送成功后把状态改为已发送，重启时跳过已发送的记录；文件写满后换一个新文件，全部发送完的旧文件删除
+ * 写入内存映射后进程崩溃不会丢失，操作系统崩溃时可能丢失还没有刷到磁盘的部分，开启force后每次写入都刷盘
+ */
+@Slf4j
+@Component
+public class OrderJournal {
+
+    private static final String SEGMENT_PREFIX = "orders-";
+    private static final String SEGMENT_SUFFIX = ".log";
+
+    private static final int HEADER_LENGTH = 9;
+    private static final int PAYLOAD_LENGTH = 32;
+    private static final int RECORD_LENGTH = HEADER_LENGTH + PAYLOAD_LENGTH;
+
+    private static final byte PENDING = 0;
+    private static final byte DRAINED = 1;
+
+    private final Path dir;
+    private final int segmentBytes;
+    private final boolean force;
+
+    //从旧到新的文件，最后一个是正在写入的文件
+    private final Deque<Segment> segments = new ArrayDeque<>();
+    //第一个文件中下一条要发送的记录的位置
+    private int readPosition;
+
+    //还没有发送的记录数
+    private final AtomicLong pending = new AtomicLong();
+    private final Counter appendedCounter;
+    private final Counter drainedCounter;
+    private final Counter corruptedCounter;
+
+    public OrderJournal(MeterRegistry meterRegistry,
+                        @Value("${hmdp.order.journal.dir:./data/order-journal}") String dir,
+                        @Value("${hmdp.order.journal.segment-bytes:67108864}") int segmentBytes,
+                        @Value("${hmdp.order.journal.force:false}") boolean force) throws IOException {
+        this.dir = Paths.get(dir);
+        this.segmentBytes = segmentBytes;
+        this.force = force;
+        this.appendedCounter = Counter.builder("order.journal.appended").register(meterRegistry);
+        this.drainedCounter = Counter.builder("order.journal.drained").register(meterRegistry);
+        this.corruptedCounter = Counter.builder("order.journal.corrupted").register(meterRegistry);
+        Gauge.builder("order.journal.pending", pending, AtomicLong::get).register(meterRegistry);
+        Files.createDirectories(this.dir);
+        recover();
+    }
+
+    /**
+     * 是否还有没发送的记录，有的时候新订单也应该写入日志，保证按顺序发送
+     */
+    public boolean hasPending() {
+        return pending.get() > 0;
+    }
+
+    /**
+     * 追加一个订单
+     */
+    public synchronized void append(VoucherOrder order) {
+        Segment segment = segments.peekLast();
+        if (segment == null || segment.limit + RECORD_LENGTH > segmentBytes) {
+            segment = createSegment(segment == null ? 0 : segment.seq + 1);
+        }
+        ByteBuffer payload = encode(order);
+        int position = segment.limit;
+        MappedByteBuffer buffer = segment.buffer;
+        buffer.putInt(position + 4, crc(payload));
+        buffer.put(position + 8, PENDING);
+        for (int i = 0; i < PAYLOAD_LENGTH; i++) {
+            buffer.put(position + HEADER_LENGTH + i, payload.get(i));
+        }
+        //长度最后写，重启时长度不为0的记录一定是完整的
+        buffer.putInt(position, PAYLOAD_LENGTH);
+        if (force) {
+            buffer.force();
+        }
+        segment.limit = position + RECORD_LENGTH;
+        pending.incrementAndGet();
+        appendedCounter.increment();
+    }
+
+    /**
+     * 按写入顺序发送还没有发送的记录，发送失败时停止，等下一次调度
+     * @param publisher 发送订单，失败时抛出异常
+     */
+    public void drain(Consumer<VoucherOrder> publisher) {
+        while (true) {
+            Segment segment;
+            int position;
+            VoucherOrder order;
+            synchronized (this) {
+                segment = segments.peekFirst();
+                if (segment == null) {
+                    return;
+                }
+                if (readPosition >= segment.limit) {
+                    if (segment == segments.peekLast()) {
+                        //全部发送完
+                        return;
+                    }
+                    //旧文件已经发送完，删除
+                    segments.pollFirst();
+                    segment.delete();
+                    readPosition = 0;
+                    continue;
+                }
+                position = readPosition;
+                if (segment.buffer.get(position + 8) == DRAINED) {
+                    readPosition += RECORD_LENGTH;
+                    continue;
+                }
+                order = read(segment, position);
+                if (order == null) {
+                    //crc不一致，跳过
+                    markDrained(segment, position);
+                    continue;
+                }
+            }
+            try {
+                publisher.accept(order);
+            } catch (Exception e) {
+                log.warn("订单日志重新发送失败，等待下一次重试，剩余{}条", pending.get(), e);
+                return;
+            }
+            synchronized (this) {
+                markDrained(segment, position);
+                drainedCounter.increment();
+            }
+        }
+    }
+
+    @PreDestroy
+    public synchronized void close() {
+        for (Segment segment : segments) {
+            segment.buffer.force();
+            segment.close();
+        }
+        //全部发送完时删除，下次启动不用再扫描
+        if (pending.get() == 0) {
+            segments.forEach(Segment::delete);
+        }
+    }
+
+    /**
+     * 启动时扫描目录下已有的文件，统计没有发送的记录，删除已经全部发送完的文件
+     * 新的记录写入一个新文件，不再追加到旧文件
+     */
+    private void recover() throws IOException {
+        List<Path> files;
+        try (Stream<Path> stream = Files.list(dir)) {
+            files = stream.filter(p -> p.getFileName().toString().startsWith(SEGMENT_PREFIX)
+                            && p.getFileName().toString().endsWith(SEGMENT_SUFFIX))
+                    .sorted()
+                    .collect(Collectors.toList());
+        }
+        long seq = 0;
+        for (Path file : files) {
+            String name = file.getFileName().toString();
+            seq = Long.parseLong(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length()));
+            Segment segment = openSegment(seq, file, (int) Files.size(file));
+            int count = 0;
+            int position = 0;
+            while (position + RECORD_LENGTH <= segment.buffer.capacity() && segment.buffer.getInt(position) != 0) {
+                if (segment.buffer.get(position + 8) == PENDING) {
+                    count++;
+                }
+                position += RECORD_LENGTH;
+            }
+            segment.limit = position;
+            if (count == 0) {
+                segment.close();
+                segment.delete();
+            } else {
+                segments.addLast(segment);
+                pending.addAndGet(count);
+            }
+        }
+        if (!segments.isEmpty()) {
+            log.warn("订单日志中有{}条订单还没有发送，将在后台重新发送", pending.get());
+        }
+        createSegment(seq + 1);
+    }
+
+    private Segment createSegment(long seq) {
+        Path file = dir.resolve(String.format("%s%020d%s", SEGMENT_PREFIX, seq, SEGMENT_SUFFIX));
+        try {
+            Segment segment = openSegment(seq, file, segmentBytes);
+            segments.addLast(segment);
+            return segment;
+        } catch (IOException e) {
+            throw new UncheckedIOException("创建订单日志文件失败", e);
+        }
+    }
+
+    private Segment openSegment(long seq, Path file, int size) throws IOException {
+        FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        //新文件映射时扩展到指定大小，内容为0
+        MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+        return new Segment(seq, file, channel, buffer);
+    }
+
+    private void markDrained(Segment segment, int position) {
+        segment.buffer.put(position + 8, DRAINED);
+        readPosition = position + RECORD_LENGTH;
+        pending.decrementAndGet();
+    }
+
+    private VoucherOrder read(Segment segment, int position) {
+        ByteBuffer payload = ByteBuffer.allocate(PAYLOAD_LENGTH);
+        for (int i = 0; i < PAYLOAD_LENGTH; i++) {
+            payload.put(i, segment.buffer.get(position + HEADER_LENGTH + i));
+        }
+        if (crc(payload) != segment.buffer.getInt(position + 4)) {
+            corruptedCounter.increment();
+            log.error("订单日志记录损坏，文件:{}，位置:{}", segment.file, position);
+            return null;
+        }
+        long createTime = payload.getLong(24);
+        return new VoucherOrder()
+                .setId(payload.getLong(0))
+                .setUserId(payload.getLong(8))
+                .setVoucherId(payload.getLong(16))
+                .setCreateTime(createTime < 0 ? null
+                        : LocalDateTime.ofInstant(Instant.ofEpochMilli(createTime), ZoneId.systemDefault()));
+    }
+
+    private static ByteBuffer encode(VoucherOrder order) {
+        ByteBuffer payload = ByteBuffer.allocate(PAYLOAD_LENGTH);
+        payload.putLong(0, order.getId());
+        payload.putLong(8, order.getUserId());
+        payload.putLong(16, order.getVoucherId());
+        payload.putLong(24, order.getCreateTime() == null ? -1
+                : order.getCreateTime().atZone(ZoneId.systemDefault()).toInstant().toEpochMilli());
+        return payload;
+    }
+
+    private static int crc(ByteBuffer payload) {
+        CRC32 crc32 = new CRC32();
+        crc32.update(payload.array(), 0, PAYLOAD_LENGTH);
+        return (int) crc32.getValue();
+    }
+
+    private static class Segment {
+        private final long seq;
+        private final Path file;
+        private final FileChannel channel;
+        private final MappedByteBuffer buffer;
+        //已经写入的字节数
+        private int limit;
+
+        private Segment(long seq, Path file, FileChannel channel, MappedByteBuffer buffer) {
+            this.seq = seq;
+            this.file = file;
+            this.channel = channel;
+            this.buffer = buffer;
+        }
+
+        private void close() {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                log.warn("关闭订单日志文件失败:{}", file, e);
+            }
+        }
+
+        private void delete() {
+            close();
+            try {
+                Files.deleteIfExists(file);
+            } catch (IOException e) {
+                log.warn("删除订单日志文件失败:{}", file, e);
+            }
+        }
+    }
+}
@@ -0,0 +1,40 @@
+package com.hmdp.utils;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+/**
+ * 订单消息的分区：按优惠券id的hash把订单路由到K个队列，每个队列由一个消费者按顺序消费
+ * 同一张券的订单（也就是同一个用户对这张券的所有消息）总是进入同一个队列，不同券的订单在各个队列上并行保存
+ * 修改分区数后路由会变化，修改前发出的消息仍在原来的队列中，应在队列消费完后再修改
+ */
+@Component
+public class OrderPartitions {
+
+    public static final String EXCHANGE = "seckill.order";
+    public static final String QUEUE_PREFIX = "seckill.order.";
+    //无法保存、重试次数用完的订单消息，保留下来人工处理
+    public static final String DEAD_LETTER_QUEUE = "seckill.order.dead";
+
+    private final int partitions;
+
+    public OrderPartitions(@Value("${hmdp.order.partitions:8}") int partitions) {
+        this.partitions = partitions;
+    }
+
+    public int count() {
+        return partitions;
+    }
+
+    /**
+     * 优惠券所在的分区，同时作为路由键
+     */
+    public int partition(Long voucherId) {
+        //先打散再取模，连续的优惠券id均匀分布到各个分区
+        return Math.floorMod(Long.hashCode(voucherId * 0x9E3779B97F4A7C15L), partitions);
+    }
+
+    public static String queueName(int partition) {
+        return QUEUE_PREFIX + partition;
+    }
+}
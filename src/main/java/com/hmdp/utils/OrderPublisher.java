@@ -0,0 +1,207 @@
+package com.hmdp.utils;
+
+import com.hmdp.entity.VoucherOrder;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.amqp.AmqpException;
+import org.springframework.amqp.rabbit.connection.ConnectionBlockedEvent;
+import org.springframework.amqp.rabbit.connection.ConnectionUnblockedEvent;
+import org.springframework.amqp.rabbit.connection.CorrelationData;
+import org.springframework.amqp.rabbit.core.RabbitTemplate;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.event.EventListener;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PreDestroy;
+import javax.annotation.Resource;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import static com.hmdp.utils.RedisConstants.ORDER_JOURNAL_BACKLOG_KEY;
+import static com.hmdp.utils.RedisConstants.ORDER_JOURNAL_BACKLOG_TTL;
+
+/**
+ * 发送订单消息：发送失败时写入本地的订单日志，由定时任务重新发送
+ * 日志中还有没发送的订单时（消息队列还没恢复），新订单直接写入日志，不再等待发送超时，也保证按顺序发送
+ * 有积压时在redis中标记，对账时不把这些还没发送的订单当成丢失的消息重新生成
+ * 开启了发布确认，broker确认持久化之后才算发送成功；下单时发送后不等待确认，等待确认的订单记录下来，
+ * 收到拒绝、无法路由时由确认回调写入日志，超时没有确认的由定时任务写入日志，超时的消息可能重复，消费者按主键和唯一索引去重
+ * broker内存或磁盘不足触发流控时发送会一直阻塞，流控期间不再发送，直接写入日志，不占用请求线程
+ */
+@Slf4j
+@Component
+public class OrderPublisher {
+
+    @Resource
+    private RabbitTemplate rabbitTemplate;
+    @Resource
+    private OrderPartitions orderPartitions;
+    @Resource
+    private OrderJournal orderJournal;
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    //等待broker确认的最长时间，毫秒
+    @Value("${hmdp.order.publish.confirm-timeout-millis:1000}")
+    private long confirmTimeoutMillis;
+
+    //连接被broker流控阻塞
+    private volatile boolean blocked;
+
+    //已经发送、还没有收到确认的订单，订单id -> 订单
+    private final Map<Long, Outstanding> outstanding = new ConcurrentHashMap<>();
+
+    /**
+     * 发送订单消息，不等待broker确认，不占用请求线程
+     */
+    public void publish(VoucherOrder order) {
+        if (blocked || orderJournal.hasPending()) {
+            orderJournal.append(order);
+            return;
+        }
+        CorrelationData correlation = new CorrelationData(String.valueOf(order.getId()));
+        outstanding.put(order.getId(), new Outstanding(order, System.currentTimeMillis()));
+        correlation.getFuture().addCallback(
+                confirm -> onConfirm(order, correlation, confirm),
+                e -> unconfirmed(order, "等待broker确认失败", e));
+        try {
+            convertAndSend(order, correlation);
+        } catch (AmqpException e) {
+            unconfirmed(order, "订单消息发送失败", e);
+        }
+    }
+
+    /**
+     * 超过确认超时时间还没有确认的订单写入本地日志，之后收到的确认忽略
+     */
+    @Scheduled(fixedDelayString = "${hmdp.order.publish.confirm-timeout-millis:1000}")
+    public void sweep() {
+        long deadline = System.currentTimeMillis() - confirmTimeoutMillis;
+        for (Outstanding entry : outstanding.values()) {
+            if (entry.sentAt < deadline) {
+                unconfirmed(entry.order, "等待broker确认超时", null);
+            }
+        }
+    }
+
+    /**
+     * 停止前还没有确认的订单写入本地日志，重启后重新发送
+     */
+    @PreDestroy
+    public void shutdown() {
+        for (Outstanding entry : outstanding.values()) {
+            unconfirmed(entry.order, "停止前没有收到broker确认", null);
+        }
+    }
+
+    /**
+     * 把日志中的订单重新发送到消息队列，发送前续期积压标记
+     */
+    @Scheduled(fixedDelayString = "${hmdp.order.journal.drain-interval:1000}")
+    public void drain() {
+        if (orderJournal.hasPending()) {
+            markBacklog();
+            if (!blocked) {
+                orderJournal.drain(this::sendAndWait);
+            }
+        }
+    }
+
+    @EventListener
+    public void onBlocked(ConnectionBlockedEvent event) {
+        log.warn("消息队列连接被流控阻塞，订单写入本地日志:{}", event.getReason());
+        blocked = true;
+    }
+
+    @EventListener
+    public void onUnblocked(ConnectionUnblockedEvent event) {
+        log.info("消息队列连接解除阻塞");
+        blocked = false;
+    }
+
+    /**
+     * 标记有节点的订单日志中还有积压，标记写入失败时对账也无法进行，不影响发送
+     */
+    private void markBacklog() {
+        try {
+            stringRedisTemplate.opsForValue().set(ORDER_JOURNAL_BACKLOG_KEY, "1", ORDER_JOURNAL_BACKLOG_TTL, TimeUnit.SECONDS);
+        } catch (Exception e) {
+            log.warn("写入订单日志积压标记失败", e);
+        }
+    }
+
+    /**
+     * 收到broker的确认，拒绝或者无法路由时写入本地日志；已经超时写入日志的订单不再处理
+     */
+    private void onConfirm(VoucherOrder order, CorrelationData correlation, CorrelationData.Confirm confirm) {
+        if (!confirm.isAck()) {
+            unconfirmed(order, "broker拒绝了订单消息，原因:" + confirm.getReason(), null);
+        } else if (correlation.getReturnedMessage() != null) {
+            //无法路由的消息在确认之前退回，broker同样会确认
+            unconfirmed(order, "订单消息无法路由", null);
+        } else {
+            outstanding.remove(order.getId());
+        }
+    }
+
+    /**
+     * 没有发送成功的订单写入本地日志，每个订单只写入一次
+     */
+    private void unconfirmed(VoucherOrder order, String reason, Throwable cause) {
+        if (outstanding.remove(order.getId()) == null) {
+            return;
+        }
+        log.error("{}，写入本地日志，订单:{}", reason, order.getId(), cause);
+        orderJournal.append(order);
+    }
+
+    /**
+     * 按优惠券id发送到对应分区的队列
+     */
+    private void convertAndSend(VoucherOrder order, CorrelationData correlation) {
+        rabbitTemplate.convertAndSend(OrderPartitions.EXCHANGE,
+                String.valueOf(orderPartitions.partition(order.getVoucherId())), order, correlation);
+    }
+
+    /**
+     * 发送日志中的订单，等待broker确认，确认之后才从日志中删除；在定时任务的线程中执行，不占用请求线程
+     * @throws AmqpException 发送失败、broker拒绝、消息无法路由或者等待确认超时
+     */
+    private void sendAndWait(VoucherOrder order) {
+        CorrelationData correlation = new CorrelationData(String.valueOf(order.getId()));
+        convertAndSend(order, correlation);
+        CorrelationData.Confirm confirm;
+        try {
+            confirm = correlation.getFuture().get(confirmTimeoutMillis, TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+            throw new AmqpException("等待broker确认超时，订单:" + order.getId(), e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new AmqpException("等待broker确认被中断，订单:" + order.getId(), e);
+        } catch (ExecutionException e) {
+            throw new AmqpException("等待broker确认失败，订单:" + order.getId(), e.getCause());
+        }
+        if (!confirm.isAck()) {
+            throw new AmqpException("broker拒绝了订单消息:" + order.getId() + "，原因:" + confirm.getReason());
+        }
+        //无法路由的消息在确认之前退回，broker同样会确认
+        if (correlation.getReturnedMessage() != null) {
+            throw new AmqpException("订单消息无法路由:" + order.getId());
+        }
+    }
+
+    private static class Outstanding {
+        private final VoucherOrder order;
+        //发送的时间，毫秒
+        private final long sentAt;
+
+        private Outstanding(VoucherOrder order, long sentAt) {
+            this.order = order;
+            this.sentAt = sentAt;
+        }
+    }
+}
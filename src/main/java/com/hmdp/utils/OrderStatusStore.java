@@ -0,0 +1,190 @@
+package com.hmdp.utils;
+
+import com.hmdp.entity.VoucherOrder;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.connection.Message;
+import org.springframework.data.redis.connection.MessageListener;
+import org.springframework.data.redis.connection.StringRedisConnection;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.stereotype.Component;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArraySet;
+
+import static com.hmdp.utils.RedisConstants.ORDER_ID_KEY;
+import static com.hmdp.utils.RedisConstants.ORDER_ID_TTL;
+import static com.hmdp.utils.RedisConstants.ORDER_STATUS_CHANNEL;
+import static com.hmdp.utils.RedisConstants.ORDER_STATUS_KEY;
+
+/**
+ * 秒杀订单的处理状态：下单时写入pending，消费者保存成功后改为succeeded，无法保存时改为failed
+ * 状态只保存一小段时间，客户端查询状态不用访问数据库
+ * 处理完成时通过发布订阅通知所有节点，由持有这个用户SSE连接的节点推送给客户端
+ */
+@Slf4j
+@Component
+public class OrderStatusStore implements MessageListener {
+
+    public static final String PENDING = "pending";
+    public static final String SUCCEEDED = "succeeded";
+    public static final String FAILED = "failed";
+
+    private static final String USER_ID = "userId";
+    private static final String STATUS = "status";
+    private static final String MSG = "msg";
+
+    private final StringRedisTemplate stringRedisTemplate;
+
+    //状态的有效期，秒
+    private final long ttlSeconds;
+    //SSE连接的超时时间，超时后客户端重新连接
+    private final long sseTimeoutMillis;
+
+    //用户id -> 本节点上这个用户的SSE连接
+    private final Map<Long, Set<SseEmitter>> emitters = new ConcurrentHashMap<>();
+
+    public OrderStatusStore(StringRedisTemplate stringRedisTemplate,
+                            @Value("${hmdp.order.status.ttl-seconds:600}") long ttlSeconds,
+                            @Value("${hmdp.order.status.sse-timeout-millis:300000}") long sseTimeoutMillis) {
+        this.stringRedisTemplate = stringRedisTemplate;
+        this.ttlSeconds = ttlSeconds;
+        this.sseTimeoutMillis = sseTimeoutMillis;
+    }
+
+    /**
+     * 下单后，发送消息前写入pending，同时记录这个用户在这张券下的订单id
+     */
+    public void pending(VoucherOrder order) {
+        write(Collections.singletonList(order), PENDING, null);
+    }
+
+    /**
+     * 订单已经提交到数据库
+     */
+    public void succeeded(List<VoucherOrder> orders) {
+        write(orders, SUCCEEDED, null);
+    }
+
+    /**
+     * 订单无法保存
+     */
+    public void failed(VoucherOrder order, String msg) {
+        write(Collections.singletonList(order), FAILED, msg);
+    }
+
+    /**
+     * 查询下单时生成的订单id，和用户id一一对应，已经过期的为null
+     */
+    public List<Long> orderIds(Long voucherId, List<Long> userIds) {
+        List<String> keys = new ArrayList<>(userIds.size());
+        for (Long userId : userIds) {
+            keys.add(ORDER_ID_KEY + voucherId + ":" + userId);
+        }
+        List<String> values = stringRedisTemplate.opsForValue().multiGet(keys);
+        List<Long> ids = new ArrayList<>(userIds.size());
+        for (int i = 0; i < userIds.size(); i++) {
+            String value = values == null ? null : values.get(i);
+            ids.add(value == null ? null : Long.valueOf(value));
+        }
+        return ids;
+    }
+
+    /**
+     * 查询订单状态，只能查询自己的订单
+     * @return 状态已经过期、订单不存在或者不是这个用户的订单时返回null
+     */
+    public Map<String, Object> get(Long orderId, Long userId) {
+        Map<Object, Object> entries = stringRedisTemplate.opsForHash().entries(ORDER_STATUS_KEY + orderId);
+        if (entries.isEmpty() || !String.valueOf(userId).equals(entries.get(USER_ID))) {
+            return null;
+        }
+        return toEvent(orderId, (String) entries.get(STATUS), (String) entries.get(MSG));
+    }
+
+    /**
+     * 创建这个用户的SSE连接，本节点收到这个用户的订单处理完成的消息时推送
+     */
+    public SseEmitter subscribe(Long userId) {
+        SseEmitter emitter = new SseEmitter(sseTimeoutMillis);
+        Set<SseEmitter> userEmitters = emitters.computeIfAbsent(userId, id -> new CopyOnWriteArraySet<>());
+        userEmitters.add(emitter);
+        Runnable remove = () -> emitters.computeIfPresent(userId, (id, set) -> {
+            set.remove(emitter);
+            return set.isEmpty() ? null : set;
+        });
+        emitter.onCompletion(remove);
+        emitter.onTimeout(remove);
+        emitter.onError(e -> remove.run());
+        return emitter;
+    }
+
+    @Override
+    public void onMessage(Message message, byte[] pattern) {
+        String[] parts = new String(message.getBody(), StandardCharsets.UTF_8).split(":", 3);
+        Set<SseEmitter> userEmitters = emitters.get(Long.valueOf(parts[0]));
+        if (userEmitters == null) {
+            return;
+        }
+        Map<String, Object> event = toEvent(Long.valueOf(parts[1]), parts[2], null);
+        for (SseEmitter emitter : userEmitters) {
+            try {
+                emitter.send(SseEmitter.event().name("order").data(event));
+            } catch (IOException | IllegalStateException e) {
+                //客户端已经断开
+                emitter.completeWithError(e);
+            }
+        }
+    }
+
+    /**
+     * 用一次管道写入状态，处理完成的状态同时发布通知
+     */
+    private void write(List<VoucherOrder> orders, String status, String msg) {
+        if (orders.isEmpty()) {
+            return;
+        }
+        try {
+            stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+                StringRedisConnection conn = (StringRedisConnection) connection;
+                for (VoucherOrder order : orders) {
+                    String key = ORDER_STATUS_KEY + order.getId();
+                    Map<String, String> fields = new HashMap<>();
+                    fields.put(USER_ID, order.getUserId().toString());
+                    fields.put(STATUS, status);
+                    if (msg != null) {
+                        fields.put(MSG, msg);
+                    }
+                    conn.hMSet(key, fields);
+                    conn.expire(key, ttlSeconds);
+                    if (PENDING.equals(status)) {
+                        conn.setEx(ORDER_ID_KEY + order.getVoucherId() + ":" + order.getUserId(),
+                                ORDER_ID_TTL, order.getId().toString());
+                    } else {
+                        conn.publish(ORDER_STATUS_CHANNEL, order.getUserId() + ":" + order.getId() + ":" + status);
+                    }
+                }
+                return null;
+            });
+        } catch (Exception e) {
+            //状态只用于通知客户端，写入失败不影响下单和保存订单
+            log.error("写入{}个订单的状态{}失败", orders.size(), status, e);
+        }
+    }
+
+    private Map<String, Object> toEvent(Long orderId, String status, String msg) {
+        Map<String, Object> event = new LinkedHashMap<>();
+        //订单id超过js的安全整数，转成字符串
+        event.put("orderId", orderId.toString());
+        event.put("status", status);
+        if (msg != null) {
+            event.put("msg", msg);
+        }
+        return event;
+    }
+}
@@ -0,0 +1,346 @@
+package com.hmdp.utils;
+
+import com.hmdp.entity.VoucherOrder;
+import com.hmdp.service.IVoucherOrderService;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.ApplicationArguments;
+import org.springframework.boot.ApplicationRunner;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.redis.connection.StringRedisConnection;
+import org.springframework.data.redis.core.Cursor;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.ScanOptions;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.ZSetOperations;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PreDestroy;
+import java.io.IOException;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.*;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static com.hmdp.utils.RedisConstants.ORDER_TIMEOUT_KEY;
+
+/**
+ * 未支付订单的超时取消
+ * 订单保存后把超时时间写入redis的zset（重启后不丢失），成功后再放入本地的分层时间轮，到期时：
+ * 1.用seckill_timeout_claim.lua领取：zset中的分数已经到期时把分数改为 当前时间+租期，领取成功的节点才继续处理
+ * 2.在数据库中把未支付的订单改为已取消并恢复库存
+ * 3.用seckill_cancel.lua在一个脚本中恢复redis的库存并删除下单记录，用户可以重新抢购
+ * 4.全部完成后才从zset中删除；中途失败或者进程崩溃时订单还在zset中，租期过后由本节点的时间轮或者其他节点的定时扫描重新领取
+ * 重新领取时订单可能已经被取消（上次在第3步失败），这时用户没有其他有效订单才恢复redis，恢复脚本本身也不会重复加库存
+ * 启动时用ZSCAN把zset中的订单全部放入时间轮；其他节点放入时间轮后宕机的订单，由定时任务扫描zset中已经超时较久的订单补充处理
+ */
+@Slf4j
+@Component
+public class OrderTimeoutScheduler implements ApplicationRunner {
+
+    private static final DefaultRedisScript<Long> CLAIM_SCRIPT;
+    private static final DefaultRedisScript<Long> CANCEL_SCRIPT;
+    static {
+        CLAIM_SCRIPT = new DefaultRedisScript<>();
+        CLAIM_SCRIPT.setLocation(new ClassPathResource("seckill_timeout_claim.lua"));
+        CLAIM_SCRIPT.setResultType(Long.class);
+        CANCEL_SCRIPT = new DefaultRedisScript<>();
+        CANCEL_SCRIPT.setLocation(new ClassPathResource("seckill_cancel.lua"));
+        CANCEL_SCRIPT.setResultType(Long.class);
+    }
+
+    private final StringRedisTemplate stringRedisTemplate;
+    private final IVoucherOrderService voucherOrderService;
+    private final SeckillStockShards seckillStockShards;
+    private final SoldOutFlags soldOutFlags;
+
+    private final boolean enabled;
+    private final long timeoutMillis;
+    private final long tickMillis;
+    //本节点时间轮中超时超过这个时间还在zset中的订单，由定时扫描处理
+    private final long sweepDelayMillis;
+    //领取后的租期，处理失败时租期过后重试
+    private final long leaseMillis;
+    private final int scanCount;
+
+    private final HierarchicalTimingWheel<OrderTimeout> wheel;
+    //推进时间轮的线程
+    private final Thread ticker;
+    //执行取消的线程，时间轮线程只负责推进时间，不访问数据库
+    private final ExecutorService cancelExecutor;
+    private volatile boolean running = true;
+    //写入zset失败的订单，由定时任务重试，写入成功后才放入时间轮
+    private final Queue<OrderTimeout> unsaved = new ConcurrentLinkedQueue<>();
+
+    //时间轮中的订单数
+    private final AtomicLong pending = new AtomicLong();
+    private final Counter cancelledCounter;
+    private final Counter retriedCounter;
+
+    public OrderTimeoutScheduler(StringRedisTemplate stringRedisTemplate, IVoucherOrderService voucherOrderService,
+                                 SeckillStockShards seckillStockShards, SoldOutFlags soldOutFlags,
+                                 MeterRegistry meterRegistry,
+                                 @Value("${hmdp.order.timeout.enabled:true}") boolean enabled,
+                                 @Value("${hmdp.order.timeout.minutes:15}") long timeoutMinutes,
+                                 @Value("${hmdp.order.timeout.tick-millis:1000}") long tickMillis,
+                                 @Value("${hmdp.order.timeout.wheel-size:60}") int wheelSize,
+                                 @Value("${hmdp.order.timeout.sweep-delay-millis:60000}") long sweepDelayMillis,
+                                 @Value("${hmdp.order.timeout.lease-millis:30000}") long leaseMillis,
+                                 @Value("${hmdp.order.timeout.scan-count:1000}") int scanCount) {
+        this.stringRedisTemplate = stringRedisTemplate;
+        this.voucherOrderService = voucherOrderService;
+        this.seckillStockShards = seckillStockShards;
+        this.soldOutFlags = soldOutFlags;
+        this.enabled = enabled;
+        this.timeoutMillis = TimeUnit.MINUTES.toMillis(timeoutMinutes);
+        this.tickMillis = tickMillis;
+        this.sweepDelayMillis = sweepDelayMillis;
+        this.leaseMillis = leaseMillis;
+        this.scanCount = scanCount;
+        this.wheel = new HierarchicalTimingWheel<>(tickMillis, wheelSize, System.currentTimeMillis());
+        this.ticker = new Thread(this::tick, "order-timeout-ticker");
+        this.ticker.setDaemon(true);
+        this.cancelExecutor = Executors.newSingleThreadExecutor(r -> new Thread(r, "order-timeout-cancel"));
+        this.cancelledCounter = Counter.builder("order.timeout.cancelled").register(meterRegistry);
+        this.retriedCounter = Counter.builder("order.timeout.retried").register(meterRegistry);
+        Gauge.builder("order.timeout.pending", pending, AtomicLong::get).register(meterRegistry);
+        Gauge.builder("order.timeout.unsaved", unsaved, Queue::size).register(meterRegistry);
+    }
+
+    /**
+     * 启动时把zset中的订单放入时间轮，已经超时的立即取消
+     */
+    @Override
+    public void run(ApplicationArguments args) {
+        if (!enabled) {
+            return;
+        }
+        ticker.start();
+        int loaded = 0;
+        ScanOptions options = ScanOptions.scanOptions().count(scanCount).build();
+        try (Cursor<ZSetOperations.TypedTuple<String>> members = stringRedisTemplate.opsForZSet().scan(ORDER_TIMEOUT_KEY, options)) {
+            while (members.hasNext()) {
+                ZSetOperations.TypedTuple<String> member = members.next();
+                OrderTimeout timeout = OrderTimeout.parse(member.getValue(), member.getScore().longValue());
+                if (timeout != null) {
+                    add(timeout);
+                    loaded++;
+                }
+            }
+        } catch (IOException e) {
+            log.warn("关闭ZSCAN游标失败:{}", ORDER_TIMEOUT_KEY, e);
+        }
+        log.info("加载了{}个未支付订单的超时时间", loaded);
+    }
+
+    /**
+     * 订单保存后开始计时，超时时间从下单时间开始计算；重复调度同一个订单只会覆盖zset中的同一个成员
+     * 不抛出异常：订单已经提交，写入zset失败时留在本地由定时任务重试，不影响消息的确认
+     */
+    public void schedule(List<VoucherOrder> orders) {
+        if (!enabled || orders.isEmpty()) {
+            return;
+        }
+        List<OrderTimeout> timeouts = new ArrayList<>(orders.size());
+        for (VoucherOrder order : orders) {
+            LocalDateTime createTime = order.getCreateTime() == null ? LocalDateTime.now() : order.getCreateTime();
+            long deadline = createTime.atZone(ZoneId.systemDefault()).toInstant().toEpochMilli() + timeoutMillis;
+            timeouts.add(new OrderTimeout(order.getId(), order.getUserId(), order.getVoucherId(), deadline));
+        }
+        save(timeouts);
+    }
+
+    /**
+     * 重试写入zset失败的订单，再处理zset中超时较久、没有被任何节点的时间轮处理的订单，每次最多处理一页
+     */
+    @Scheduled(fixedDelayString = "${hmdp.order.timeout.sweep-interval:30000}")
+    public void sweep() {
+        if (!enabled) {
+            return;
+        }
+        List<OrderTimeout> retry = new ArrayList<>();
+        for (OrderTimeout timeout; retry.size() < scanCount && (timeout = unsaved.poll()) != null; ) {
+            retry.add(timeout);
+        }
+        if (!retry.isEmpty()) {
+            retriedCounter.increment(retry.size());
+            save(retry);
+        }
+        Set<ZSetOperations.TypedTuple<String>> members = stringRedisTemplate.opsForZSet()
+                .rangeByScoreWithScores(ORDER_TIMEOUT_KEY, 0, System.currentTimeMillis() - sweepDelayMillis, 0, scanCount);
+        if (members == null || members.isEmpty()) {
+            return;
+        }
+        log.info("处理{}个超时较久的未支付订单", members.size());
+        for (ZSetOperations.TypedTuple<String> member : members) {
+            OrderTimeout timeout = OrderTimeout.parse(member.getValue(), member.getScore().longValue());
+            if (timeout != null) {
+                expire(timeout);
+            }
+        }
+    }
+
+    /**
+     * 恢复redis中的库存和下单记录：库存加回用户所属的分片，一人一单的下单记录也在这个分片上
+     * 只有下单记录还在时才加库存，重复调用没有影响
+     * @return 是否恢复了
+     */
+    public boolean restore(Long voucherId, Long userId) {
+        int shards = seckillStockShards.shardCount(voucherId);
+        List<String> keys = shards > 1
+                ? Arrays.asList(SeckillStockShards.stockKey(voucherId, SeckillStockShards.homeShard(userId, shards)),
+                        SeckillStockShards.orderKey(voucherId, SeckillStockShards.homeShard(userId, shards)))
+                : Arrays.asList(SeckillStockShards.stockKey(voucherId), SeckillStockShards.orderKey(voucherId));
+        Long restored = stringRedisTemplate.execute(CANCEL_SCRIPT, keys, userId.toString());
+        if (restored != null && restored == 1L) {
+            soldOutFlags.clear(voucherId);
+            return true;
+        }
+        return false;
+    }
+
+    @PreDestroy
+    public void shutdown() throws InterruptedException {
+        running = false;
+        ticker.interrupt();
+        cancelExecutor.shutdown();
+        //没有处理完的订单还在zset中，重启后或者由其他节点处理
+        cancelExecutor.awaitTermination(tickMillis * 10, TimeUnit.MILLISECONDS);
+        if (!unsaved.isEmpty()) {
+            log.error("{}个订单的超时时间没有写入redis，不会自动取消", unsaved.size());
+        }
+    }
+
+    /**
+     * 先写入zset再放入时间轮，时间轮中的订单一定能在zset中领取到
+     */
+    private void save(List<OrderTimeout> timeouts) {
+        try {
+            stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+                StringRedisConnection conn = (StringRedisConnection) connection;
+                for (OrderTimeout timeout : timeouts) {
+                    conn.zAdd(ORDER_TIMEOUT_KEY, timeout.deadline, timeout.member());
+                }
+                return null;
+            });
+        } catch (Exception e) {
+            log.error("{}个订单的超时时间写入redis失败，稍后重试", timeouts.size(), e);
+            unsaved.addAll(timeouts);
+            return;
+        }
+        timeouts.forEach(this::add);
+    }
+
+    private void add(OrderTimeout timeout) {
+        boolean added;
+        synchronized (wheel) {
+            added = wheel.add(timeout.deadline, timeout);
+        }
+        if (added) {
+            pending.incrementAndGet();
+        } else {
+            //已经超时
+            cancelExecutor.execute(() -> expire(timeout));
+        }
+    }
+
+    /**
+     * 每一格推进一次时间轮，到期的订单整批交给取消线程
+     */
+    private void tick() {
+        while (running) {
+            try {
+                Thread.sleep(tickMillis);
+            } catch (InterruptedException e) {
+                return;
+            }
+            List<OrderTimeout> expired = new ArrayList<>();
+            synchronized (wheel) {
+                wheel.advance(System.currentTimeMillis(), expired::add);
+            }
+            if (!expired.isEmpty()) {
+                pending.addAndGet(-expired.size());
+                cancelExecutor.execute(() -> expired.forEach(this::expire));
+            }
+        }
+    }
+
+    private void expire(OrderTimeout timeout) {
+        long leaseUntil = System.currentTimeMillis() + leaseMillis;
+        try {
+            //1.领取，其他节点正在处理（租期还没过）或者已经处理完时跳过
+            Long claimed = stringRedisTemplate.execute(CLAIM_SCRIPT, Collections.singletonList(ORDER_TIMEOUT_KEY),
+                    timeout.member(), String.valueOf(System.currentTimeMillis()), String.valueOf(leaseUntil));
+            if (claimed == null || claimed == 0) {
+                return;
+            }
+            //2.取消数据库中的订单，已经支付的订单不处理；上次取消后没有恢复redis的订单继续恢复
+            if (voucherOrderService.cancelTimeoutOrder(timeout.orderId, timeout.voucherId) || needsRestore(timeout)) {
+                //3.恢复redis
+                restore(timeout.voucherId, timeout.userId);
+                cancelledCounter.increment();
+                log.debug("订单{}超时未支付，已取消", timeout.orderId);
+            }
+            //4.处理完成
+            stringRedisTemplate.opsForZSet().remove(ORDER_TIMEOUT_KEY, timeout.member());
+        } catch (Exception e) {
+            //订单还在zset中，租期过后重新领取
+            log.error("取消超时订单{}失败，{}毫秒后重试", timeout.orderId, leaseMillis, e);
+            retriedCounter.increment();
+            add(new OrderTimeout(timeout.orderId, timeout.userId, timeout.voucherId, leaseUntil));
+        }
+    }
+
+    /**
+     * 订单已经被超时取消，并且用户没有重新抢购成功的订单时，redis可能还没有恢复
+     * 用户重新抢购过时下单记录属于新订单，不能删除
+     */
+    private boolean needsRestore(OrderTimeout timeout) {
+        VoucherOrder order = voucherOrderService.getById(timeout.orderId);
+        if (order == null || order.getStatus() == null || order.getStatus() != 4) {
+            return false;
+        }
+        return voucherOrderService.query()
+                .eq("user_id", timeout.userId)
+                .eq("voucher_id", timeout.voucherId)
+                .ne("status", 4)
+                .count() == 0;
+    }
+
+    private static class OrderTimeout {
+        private final long orderId;
+        private final long userId;
+        private final long voucherId;
+        private final long deadline;
+
+        private OrderTimeout(long orderId, long userId, long voucherId, long deadline) {
+            this.orderId = orderId;
+            this.userId = userId;
+            this.voucherId = voucherId;
+            this.deadline = deadline;
+        }
+
+        private String member() {
+            return orderId + ":" + userId + ":" + voucherId;
+        }
+
+        private static OrderTimeout parse(String member, long deadline) {
+            String[] parts = member.split(":");
+            if (parts.length != 3) {
+                log.warn("无法解析的超时订单:{}", member);
+                return null;
+            }
+            return new OrderTimeout(Long.parseLong(parts[0]), Long.parseLong(parts[1]), Long.parseLong(parts[2]),
+                    deadline);
+        }
+    }
+}
@@ -1,28 +1,346 @@
 package com.hmdp.utils;
 
-import cn.hutool.json.JSONUtil;
-import com.fasterxml.jackson.core.JsonProcessingException;
 import com.hmdp.entity.VoucherOrder;
-import com.hmdp.service.IVoucherOrderService;
-import com.hmdp.service.impl.SeckillVoucherServiceImpl;
-import com.fasterxml.jackson.databind.ObjectMapper;
 import com.hmdp.service.impl.VoucherOrderServiceImpl;
+import com.rabbitmq.client.Channel;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.amqp.core.Message;
+import org.springframework.amqp.core.MessageBuilder;
+import org.springframework.amqp.rabbit.annotation.RabbitListenerConfigurer;
+import org.springframework.amqp.rabbit.config.SimpleRabbitListenerContainerFactory;
+import org.springframework.amqp.rabbit.config.SimpleRabbitListenerEndpoint;
+import org.springframework.amqp.rabbit.core.RabbitTemplate;
+import org.springframework.amqp.rabbit.listener.RabbitListenerEndpointRegistrar;
+import org.springframework.amqp.rabbit.listener.api.ChannelAwareBatchMessageListener;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.dao.DataAccessResourceFailureException;
+import org.springframework.dao.TransientDataAccessException;
+import org.springframework.data.redis.core.StringRedisTemplate;
 import org.springframework.stereotype.Component;
 import org.springframework.amqp.rabbit.annotation.RabbitListener;
 
+import javax.annotation.PostConstruct;
 import javax.annotation.Resource;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
 
+import static com.hmdp.utils.RedisConstants.ORDER_CONSUMER_STALLED_KEY;
+import static com.hmdp.utils.RedisConstants.ORDER_CONSUMER_STALLED_TTL;
+
+/**
+ * 订单消息的消费者
+ * 每个订单分区注册一个监听容器，分区内按顺序保存，分区之间并行；test.queues是分区之前的队列，保留监听直到消费完
+ */
+@Slf4j
 @Component
-public class RabbitMQListener {
+public class RabbitMQListener implements RabbitListenerConfigurer {
 
+    //消息中记录已经失败次数的header
+    private static final String ATTEMPTS_HEADER = "order-attempts";
 
     @Resource
     private VoucherOrderServiceImpl voucherOrderService;
+    @Resource
+    private RabbitTemplate rabbitTemplate;
+    @Resource
+    private MeterRegistry meterRegistry;
+    @Resource
+    private OrderPartitions orderPartitions;
+    @Resource
+    private OrderStatusStore orderStatusStore;
+    @Resource
+    private OrderTimeoutScheduler orderTimeoutScheduler;
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+    //批量消费的容器工厂
+    @Resource
+    private SimpleRabbitListenerContainerFactory batchContainerFactory;
+    //逐条消费的容器工厂
+    @Resource
+    private SimpleRabbitListenerContainerFactory rabbitListenerContainerFactory;
+
+    @Value("${hmdp.order.batch.enabled:true}")
+    private boolean batchEnabled;
+    //每个分区的消费者数，队列开启了single active consumer，同一时刻只有一个在消费，其余的在活跃的消费者断开时立即接替
+    @Value("${hmdp.order.consumers-per-partition:1}")
+    private int consumersPerPartition;
+    //逐条消费时，数据库可用但保存失败的消息最多处理的次数，用完后放入死信队列
+    @Value("${hmdp.order.retry.max-attempts:3}")
+    private int maxAttempts;
+    //数据库不可用时，退回队列之前等待的时间，连续失败时翻倍
+    @Value("${hmdp.order.retry.initial-backoff-millis:100}")
+    private long initialBackoffMillis;
+    @Value("${hmdp.order.retry.max-backoff-millis:5000}")
+    private long maxBackoffMillis;
+
+    //连续因为数据库不可用而保存失败的次数，保存成功后清零；数据库不可用时所有分区都会失败，共用一个计数
+    private final AtomicInteger dbFailures = new AtomicInteger();
+
+    //每批的消息数
+    private DistributionSummary batchSizeSummary;
+    //从下单到订单保存到数据库的延迟
+    private Timer lagTimer;
+    //失败后拆分的次数
+    private Counter splitCounter;
+    //无法保存、被拒绝的消息数
+    private Counter rejectedCounter;
+
+    @PostConstruct
+    private void init() {
+        batchSizeSummary = DistributionSummary.builder("order.batch.size")
+                .publishPercentiles(0.5, 0.99)
+                .register(meterRegistry);
+        lagTimer = Timer.builder("order.e2e.lag")
+                .publishPercentiles(0.5, 0.99)
+                .publishPercentileHistogram()
+                .register(meterRegistry);
+        splitCounter = Counter.builder("order.batch.splits").register(meterRegistry);
+        rejectedCounter = Counter.builder("order.batch.rejected").register(meterRegistry);
+    }
+
+    /**
+     * 给每个分区注册一个监听容器，分区内的顺序由队列的single active consumer保证，和消费者数无关
+     */
+    @Override
+    public void configureRabbitListeners(RabbitListenerEndpointRegistrar registrar) {
+        for (int i = 0; i < orderPartitions.count(); i++) {
+            SimpleRabbitListenerEndpoint endpoint = new SimpleRabbitListenerEndpoint();
+            endpoint.setId("order-partition-" + i);
+            endpoint.setQueueNames(OrderPartitions.queueName(i));
+            endpoint.setConcurrency(String.valueOf(consumersPerPartition));
+            if (batchEnabled) {
+                endpoint.setMessageListener(new ChannelAwareBatchMessageListener() {
+                    @Override
+                    public void onMessageBatch(List<Message> messages, Channel channel) {
+                        try {
+                            listenBatch(messages, channel);
+                        } catch (IOException e) {
+                            //确认失败时通道已经不可用，未确认的消息会重新投递
+                            throw new UncheckedIOException(e);
+                        }
+                    }
+                });
+                registrar.registerEndpoint(endpoint, batchContainerFactory);
+            } else {
+                endpoint.setMessageListener(this::listenOne);
+                registrar.registerEndpoint(endpoint, rabbitListenerContainerFactory);
+            }
+        }
+    }
+
+        //开启批量消费时不启动
+        @RabbitListener(queues = "test.queues", autoStartup = "#{!${hmdp.order.batch.enabled:true}}")
+        public void listenSimpleQueueMessage(VoucherOrder voucherOrder) {
+            log.debug("收到订单消息:{}", voucherOrder);
+            saveOne(voucherOrder);
+        }
+
+    /**
+     * 批量消费订单消息，整批在一个事务中保存，提交后一次确认整批消息
+     * 保存失败时把这批消息拆成两半分别重试，直到找出无法保存的单条消息并拒绝它
+     * 数据库连接不可用时不拆分，整批退回队列
+     */
+    @RabbitListener(queues = "test.queues", containerFactory = "batchContainerFactory",
+            autoStartup = "${hmdp.order.batch.enabled:true}")
+    public void listenBatch(List<Message> messages, Channel channel) throws IOException {
+        batchSizeSummary.record(messages.size());
+        List<Message> batch = new ArrayList<>(messages.size());
+        List<VoucherOrder> orders = new ArrayList<>(messages.size());
+        for (Message message : messages) {
+            try {
+                orders.add((VoucherOrder) rabbitTemplate.getMessageConverter().fromMessage(message));
+                batch.add(message);
+            } catch (Exception e) {
+                //无法解析的消息直接拒绝
+                reject(channel, message, null, e);
+            }
+        }
+        if (orders.isEmpty()) {
+            return;
+        }
+        try {
+            save(orders);
+        } catch (Exception e) {
+            saveFailed(channel, batch, orders, e);
+            return;
+        }
+        if (batch.size() == messages.size()) {
+            //整批都已保存，确认到最后一条
+            channel.basicAck(batch.get(batch.size() - 1).getMessageProperties().getDeliveryTag(), true);
+        } else {
+            ack(channel, batch);
+        }
+    }
+
+    /**
+     * 数据库不可用时等待一段时间后整批退回队列，否则拆成两半分别保存，成功的一半单独确认；拆到单条仍然失败时拒绝这条消息
+     */
+    private void saveFailed(Channel channel, List<Message> batch, List<VoucherOrder> orders, Exception cause) throws IOException {
+        if (isDbUnavailable(cause)) {
+            log.error("数据库不可用，{}条订单消息退回队列", batch.size(), cause);
+            backoff();
+            for (Message message : batch) {
+                channel.basicNack(message.getMessageProperties().getDeliveryTag(), false, true);
+            }
+            return;
+        }
+        if (batch.size() == 1) {
+            reject(channel, batch.get(0), orders.get(0), cause);
+            return;
+        }
+        splitCounter.increment();
+        int mid = batch.size() / 2;
+        List<List<Message>> messageParts = new ArrayList<>(2);
+        List<List<VoucherOrder>> orderParts = new ArrayList<>(2);
+        messageParts.add(batch.subList(0, mid));
+        messageParts.add(batch.subList(mid, batch.size()));
+        orderParts.add(orders.subList(0, mid));
+        orderParts.add(orders.subList(mid, orders.size()));
+        for (int i = 0; i < 2; i++) {
+            try {
+                save(orderParts.get(i));
+                ack(channel, messageParts.get(i));
+            } catch (Exception e) {
+                saveFailed(channel, messageParts.get(i), orderParts.get(i), e);
+            }
+        }
+    }
+
+    /**
+     * 逐条消费分区队列的消息，自动确认
+     * 数据库不可用时抛出异常，消息退回队列；其他原因保存失败时带上失败次数重新发送到原来的分区，
+     * 次数用完后放入死信队列，不会无限地重新投递
+     */
+    private void listenOne(Message message) {
+        VoucherOrder order;
+        try {
+            order = (VoucherOrder) rabbitTemplate.getMessageConverter().fromMessage(message);
+        } catch (Exception e) {
+            deadLetter(message, null, e);
+            return;
+        }
+        try {
+            saveOne(order);
+        } catch (RuntimeException e) {
+            if (isDbUnavailable(e)) {
+                throw e;
+            }
+            Integer attempts = message.getMessageProperties().getHeader(ATTEMPTS_HEADER);
+            int failed = (attempts == null ? 0 : attempts) + 1;
+            if (failed >= maxAttempts) {
+                deadLetter(message, order, e);
+                return;
+            }
+            log.warn("订单保存失败，第{}次，重新发送:{}", failed, order.getId(), e);
+            rabbitTemplate.send(message.getMessageProperties().getReceivedExchange(),
+                    message.getMessageProperties().getReceivedRoutingKey(),
+                    MessageBuilder.fromClonedMessage(message).setHeader(ATTEMPTS_HEADER, failed).build());
+        }
+    }
+
+    /**
+     * 逐条保存，保存结果写入订单状态，保存成功后开始计算支付超时
+     * 数据库不可用时等待一段时间后再抛出，由容器退回队列
+     */
+    private void saveOne(VoucherOrder voucherOrder) {
+        boolean saved;
+        try {
+            saved = voucherOrderService.creatVoucherOrder(voucherOrder);
+        } catch (RuntimeException e) {
+            if (isDbUnavailable(e)) {
+                log.error("数据库不可用，订单消息退回队列:{}", voucherOrder.getId(), e);
+                backoff();
+            }
+            throw e;
+        }
+        dbFailures.set(0);
+        if (saved) {
+            orderStatusStore.succeeded(Collections.singletonList(voucherOrder));
+            orderTimeoutScheduler.schedule(Collections.singletonList(voucherOrder));
+        } else {
+            orderStatusStore.failed(voucherOrder, "库存不足或不能重复下单");
+        }
+    }
+
+    /**
+     * 在一个事务中保存，提交后写入订单状态并开始计算支付超时
+     * 重复投递时以前已经保存的订单也会返回，再写一次状态和超时时间；超时时间写入失败时由调度器自己重试，不会抛出异常
+     */
+    private void save(List<VoucherOrder> orders) {
+        List<VoucherOrder> saved = voucherOrderService.createVoucherOrders(new ArrayList<>(orders));
+        dbFailures.set(0);
+        orderStatusStore.succeeded(saved);
+        orderTimeoutScheduler.schedule(saved);
+        if (saved.size() < orders.size()) {
+            //用户已经有其他订单，这个订单被唯一索引忽略
+            Set<Long> savedIds = saved.stream().map(VoucherOrder::getId).collect(Collectors.toSet());
+            orders.stream().filter(order -> !savedIds.contains(order.getId()))
+                    .forEach(order -> orderStatusStore.failed(order, "不能重复下单"));
+        }
+        LocalDateTime now = LocalDateTime.now();
+        for (VoucherOrder order : saved) {
+            lagTimer.record(Duration.between(order.getCreateTime(), now));
+        }
+    }
+
+    private static boolean isDbUnavailable(Exception cause) {
+        return cause instanceof DataAccessResourceFailureException || cause instanceof TransientDataAccessException;
+    }
+
+    /**
+     * 退回队列之前在消费线程中等待，数据库恢复之前不会立即重新投递、反复失败；分区内的顺序不受影响
+     * 等待期间写入标记，对账时不把还在队列中的订单当作丢失
+     */
+    private void backoff() {
+        try {
+            stringRedisTemplate.opsForValue().set(ORDER_CONSUMER_STALLED_KEY, "1", ORDER_CONSUMER_STALLED_TTL, TimeUnit.SECONDS);
+        } catch (Exception e) {
+            log.warn("写入订单消费者等待标记失败", e);
+        }
+        int failures = dbFailures.getAndIncrement();
+        long delay = Math.min(maxBackoffMillis, initialBackoffMillis << Math.min(failures, 20));
+        try {
+            Thread.sleep(delay);
+        } catch (InterruptedException e) {
+            //容器停止，直接退回
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void ack(Channel channel, List<Message> messages) throws IOException {
+        for (Message message : messages) {
+            channel.basicAck(message.getMessageProperties().getDeliveryTag(), false);
+        }
+    }
+
+    private void reject(Channel channel, Message message, VoucherOrder order, Exception cause) throws IOException {
+        deadLetter(message, order, cause);
+        channel.basicNack(message.getMessageProperties().getDeliveryTag(), false, false);
+    }
 
-        @RabbitListener(queues = "test.queues")
-        public void listenSimpleQueueMessage(VoucherOrder voucherOrder) throws InterruptedException, JsonProcessingException {
-            System.out.println(voucherOrder.toString());
-            voucherOrderService.handlerVoucherOrder(voucherOrder);
+    /**
+     * 无法保存的消息放入死信队列，订单状态改为失败
+     */
+    private void deadLetter(Message message, VoucherOrder order, Exception cause) {
+        rejectedCounter.increment();
+        if (order != null) {
+            orderStatusStore.failed(order, "订单保存失败");
         }
+        log.error("订单消息无法保存，放入死信队列:{}", message, cause);
+        rabbitTemplate.send("", OrderPartitions.DEAD_LETTER_QUEUE, message);
+    }
 
 }
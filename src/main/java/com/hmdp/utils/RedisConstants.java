@@ -14,13 +14,62 @@ public class RedisConstants {
 
     public static final String CACHE_SHOP_KEY = "cache:shop:";
 
+    //广播一级缓存失效的频道，消息内容为失效的key
+    public static final String CACHE_INVALIDATE_CHANNEL = "cache:invalidate";
+
+
+    //缓存key的版本计数器，完整的key为 cache:version:{缓存key}，和缓存key在同一个slot；每次删除缓存时加一
+    //不设置有效期：逻辑过期的缓存不会过期，计数器过期后缓存头部的版本号会大于读到的0，之后的重建都会被拒绝
+    public static final String CACHE_VERSION_KEY = "cache:version:";
+
+    //布隆过滤器的bitmap，完整的key为 bloom:{过滤器名称}
+    public static final String BLOOM_KEY = "bloom:";
+    //广播布隆过滤器新增id的频道，消息内容为 过滤器名称:id
+    public static final String BLOOM_ADD_CHANNEL = "bloom:add";
+    public static final String LOCK_BLOOM_KEY = "lock:bloom:";
+    public static final Long LOCK_BLOOM_TTL = 30L;
+
     public static final String CACHE_SHOP_TYPE = "cache:type";
     public static final String LOCK_SHOP_KEY = "lock:shop:";
     public static final Long LOCK_SHOP_TTL = 10L;
 
     public static final String SECKILL_STOCK_KEY = "seckill:stock:";
+    //秒杀券已下单的用户
+    public static final String SECKILL_ORDER_KEY = "seckill:order:";
+    //广播秒杀券售罄和补充库存的频道，消息内容为 set:优惠券id 或 clear:优惠券id
+    public static final String SECKILL_SOLD_OUT_CHANNEL = "seckill:sold-out";
+    //秒杀券的抢购时间，hash：begin、end（毫秒）
+    public static final String SECKILL_WINDOW_KEY = "seckill:window:";
+    //库存对账的分布式锁
+    public static final String LOCK_RECONCILE_NAME = "seckill:reconcile";
+    public static final Long LOCK_RECONCILE_TTL = 300L;
+    //秒杀券的限流配置，hash：qps（全局）、local-qps（每个节点）
+    public static final String SECKILL_LIMIT_KEY = "seckill:limit:";
+    //秒杀券全局令牌桶的状态
+    public static final String SECKILL_LIMIT_BUCKET_KEY = "seckill:limit:bucket:";
+    //广播限流配置修改的频道，消息内容为优惠券id
+    public static final String SECKILL_LIMIT_CHANNEL = "seckill:limit";
+    //订单的处理状态，hash：userId、status、msg
+    public static final String ORDER_STATUS_KEY = "order:status:";
+    //广播订单处理完成的频道，消息内容为 用户id:订单id:状态
+    public static final String ORDER_STATUS_CHANNEL = "order:status";
+    //未支付订单的超时时间，zset：成员为 订单id:用户id:优惠券id，分数为超时的毫秒时间戳
+    public static final String ORDER_TIMEOUT_KEY = "order:timeout";
+    //有节点的订单日志中还有没发送的订单，由这些节点定时续期，没有积压后自动过期
+    public static final String ORDER_JOURNAL_BACKLOG_KEY = "order:journal:backlog";
+    public static final Long ORDER_JOURNAL_BACKLOG_TTL = 30L;
+    //下单时生成的订单id，key为 order:id:优惠券id:用户id，对账重新发送时使用原来的id
+    public static final String ORDER_ID_KEY = "order:id:";
+    public static final Long ORDER_ID_TTL = 86400L;
+    //订单消费者因为数据库不可用正在等待重试，消息还在队列中没有确认，由消费者续期，恢复后自动过期
+    public static final String ORDER_CONSUMER_STALLED_KEY = "order:consumer:stalled";
+    public static final Long ORDER_CONSUMER_STALLED_TTL = 30L;
     public static final String BLOG_LIKED_KEY = "blog:liked:";
     public static final String FEED_KEY = "feed:";
     public static final String SHOP_GEO_KEY = "shop:geo:";
+    //店铺缓存预热完成的标记，存在时启动不再预热
+    public static final String CACHE_WARMUP_SHOP_KEY = "cache:warmup:shop";
+    public static final String LOCK_WARMUP_SHOP_KEY = "lock:warmup:shop";
+    public static final Long LOCK_WARMUP_TTL = 30L;
     public static final String USER_SIGN_KEY = "sign:";
 }
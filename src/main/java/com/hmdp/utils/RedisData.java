@@ -2,10 +2,13 @@ package com.hmdp.utils;
 
 import lombok.Data;
 
-import java.time.LocalDateTime;
-
 @Data
 public class RedisData {
-    private LocalDateTime expireTime;
+    //逻辑过期时间，毫秒时间戳
+    private long expireTime;
+    //上一次重建缓存花费的毫秒数，用于提前概率刷新
+    private int rebuildCost;
+    //写入时的版本号，取自key的版本计数器，防止旧数据覆盖新数据
+    private long version;
     private Object data;
 }
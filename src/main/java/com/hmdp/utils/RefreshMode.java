@@ -0,0 +1,16 @@
+package com.hmdp.utils;
+
+/**
+ * 逻辑过期缓存的刷新方式
+ */
+public enum RefreshMode {
+    /**
+     * 过期后竞争互斥锁，拿到锁的线程重建
+     */
+    LOCK,
+    /**
+     * 过期前按上一次重建的耗时提前概率刷新（XFetch），越接近过期、重建越慢，刷新的概率越大，
+     * 一般只有一个请求会提前刷新，不需要竞争锁；已经过期的仍然按互斥锁的方式重建
+     */
+    XFETCH
+}
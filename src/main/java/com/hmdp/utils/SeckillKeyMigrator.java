@@ -0,0 +1,70 @@
+package com.hmdp.utils;
+
+import cn.hutool.core.util.BooleanUtil;
+import com.hmdp.entity.SeckillVoucher;
+import com.hmdp.service.ISeckillVoucherService;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.ApplicationArguments;
+import org.springframework.boot.ApplicationRunner;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.Resource;
+import java.util.List;
+
+import static com.hmdp.utils.RedisConstants.SECKILL_ORDER_KEY;
+import static com.hmdp.utils.RedisConstants.SECKILL_STOCK_KEY;
+import static com.hmdp.utils.RedisConstants.SECKILL_WINDOW_KEY;
+
+/**
+ * 没有分片的秒杀券原来使用 seckill:stock:优惠券id 这样不带hash tag的key，集群中库存和订单可能不在同一个slot
+ * 启动时把这些key改名为带 {优惠券id} 的key，必须在切换到集群之前、没有进行中的秒杀时执行一次
+ * 默认关闭：滚动发布时旧版本的节点还在使用旧key，改名后它们的脚本读不到库存；
+ * 升级完所有节点后，单独启动一个实例并加上 --hmdp.seckill.migrate-legacy-keys=true 执行一次
+ * 新key已经存在时不覆盖，重复执行没有影响
+ */
+@Slf4j
+@Component
+public class SeckillKeyMigrator implements ApplicationRunner {
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+    @Resource
+    private ISeckillVoucherService seckillVoucherService;
+
+    @Value("${hmdp.seckill.migrate-legacy-keys:false}")
+    private boolean enabled;
+
+    @Override
+    public void run(ApplicationArguments args) {
+        if (!enabled) {
+            return;
+        }
+        List<SeckillVoucher> vouchers = seckillVoucherService.query()
+                .select("voucher_id").le("stock_shards", 1).list();
+        int migrated = 0;
+        for (SeckillVoucher voucher : vouchers) {
+            Long voucherId = voucher.getVoucherId();
+            try {
+                migrated += rename(SECKILL_STOCK_KEY + voucherId, SeckillStockShards.stockKey(voucherId));
+                migrated += rename(SECKILL_ORDER_KEY + voucherId, SeckillStockShards.orderKey(voucherId));
+                migrated += rename(SECKILL_WINDOW_KEY + voucherId, SeckillWindows.windowKey(voucherId));
+            } catch (Exception e) {
+                //集群中旧key和新key不在同一个slot，不能改名
+                log.error("秒杀券{}的key改名失败，需要在切换到集群前执行", voucherId, e);
+                return;
+            }
+        }
+        if (migrated > 0) {
+            log.info("秒杀券的key已改为带hash tag的key，共{}个", migrated);
+        }
+    }
+
+    private int rename(String oldKey, String newKey) {
+        if (!BooleanUtil.isTrue(stringRedisTemplate.hasKey(oldKey))) {
+            return 0;
+        }
+        return BooleanUtil.isTrue(stringRedisTemplate.renameIfAbsent(oldKey, newKey)) ? 1 : 0;
+    }
+}
@@ -0,0 +1,204 @@
+package com.hmdp.utils;
+
+import cn.hutool.core.util.StrUtil;
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.redis.connection.Message;
+import org.springframework.data.redis.connection.MessageListener;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.stereotype.Component;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static com.hmdp.utils.RedisConstants.SECKILL_LIMIT_BUCKET_KEY;
+import static com.hmdp.utils.RedisConstants.SECKILL_LIMIT_CHANNEL;
+import static com.hmdp.utils.RedisConstants.SECKILL_LIMIT_KEY;
+
+/**
+ * 秒杀的两级限流：先过本节点的令牌桶，再过redis中每张券的全局令牌桶，超过速率的请求不再执行秒杀脚本
+ * 本节点的令牌桶不加锁，用CAS推进下一个令牌的可用时间（GCRA，和令牌桶等价）
+ * 每张券的速率可以在运行时修改，保存在redis中，修改后通过发布订阅通知所有节点重新加载
+ * 速率小于等于0表示这一级不限流
+ */
+@Slf4j
+@Component
+public class SeckillRateLimiter implements MessageListener {
+
+    private static final DefaultRedisScript<Long> LIMIT_SCRIPT;
+    static {
+        LIMIT_SCRIPT = new DefaultRedisScript<>();
+        LIMIT_SCRIPT.setLocation(new ClassPathResource("seckill_limit.lua"));
+        LIMIT_SCRIPT.setResultType(Long.class);
+    }
+
+    private static final String QPS = "qps";
+    private static final String LOCAL_QPS = "local-qps";
+
+    private final StringRedisTemplate stringRedisTemplate;
+
+    //没有单独配置的券使用的速率
+    private final int defaultQps;
+    private final int defaultLocalQps;
+    //桶的容量等于多少秒生成的令牌，允许的突发流量
+    private final double burstSeconds;
+
+    //优惠券id -> 限流配置和本节点的令牌桶
+    //优惠券id来自请求路径，限制数量，长时间没有请求的券淘汰，下一次请求时重新加载
+    private final Cache<Long, Limit> limits = Caffeine.newBuilder()
+            .maximumSize(10_000)
+            .expireAfterAccess(10, TimeUnit.MINUTES)
+            .build();
+
+    private final Counter admittedCounter;
+    private final Counter localRejectedCounter;
+    private final Counter globalRejectedCounter;
+
+    public SeckillRateLimiter(StringRedisTemplate stringRedisTemplate, MeterRegistry meterRegistry,
+                              @Value("${hmdp.seckill.limit.qps:0}") int defaultQps,
+                              @Value("${hmdp.seckill.limit.local-qps:0}") int defaultLocalQps,
+                              @Value("${hmdp.seckill.limit.burst-seconds:1}") double burstSeconds) {
+        this.stringRedisTemplate = stringRedisTemplate;
+        this.defaultQps = defaultQps;
+        this.defaultLocalQps = defaultLocalQps;
+        this.burstSeconds = burstSeconds;
+        this.admittedCounter = Counter.builder("seckill.rate_limit").tag("result", "admitted").register(meterRegistry);
+        this.localRejectedCounter = Counter.builder("seckill.rate_limit").tag("result", "rejected").tag("tier", "local").register(meterRegistry);
+        this.globalRejectedCounter = Counter.builder("seckill.rate_limit").tag("result", "rejected").tag("tier", "global").register(meterRegistry);
+    }
+
+    /**
+     * 尝试放行一个秒杀请求
+     * @return false：超过速率，应该让用户稍后重试
+     */
+    public boolean tryAcquire(Long voucherId) {
+        Limit limit = limit(voucherId);
+        //1.本节点的令牌桶，不访问redis
+        if (limit.local != null && !limit.local.tryAcquire()) {
+            localRejectedCounter.increment();
+            return false;
+        }
+        //2.全局令牌桶
+        if (limit.qps > 0) {
+            Long allowed = stringRedisTemplate.execute(LIMIT_SCRIPT,
+                    Collections.singletonList(SECKILL_LIMIT_BUCKET_KEY + "{" + voucherId + "}"),
+                    String.valueOf(limit.qps), String.valueOf(capacity(limit.qps)));
+            if (allowed == null || allowed == 0L) {
+                globalRejectedCounter.increment();
+                return false;
+            }
+        }
+        admittedCounter.increment();
+        return true;
+    }
+
+    /**
+     * 修改秒杀券的速率，并通知所有节点
+     * @param qps 全局的速率
+     * @param localQps 每个节点的速率
+     */
+    public void setLimit(Long voucherId, int qps, int localQps) {
+        Map<String, String> config = new HashMap<>();
+        config.put(QPS, String.valueOf(qps));
+        config.put(LOCAL_QPS, String.valueOf(localQps));
+        stringRedisTemplate.opsForHash().putAll(SECKILL_LIMIT_KEY + voucherId, config);
+        limits.invalidate(voucherId);
+        stringRedisTemplate.convertAndSend(SECKILL_LIMIT_CHANNEL, voucherId.toString());
+    }
+
+    @Override
+    public void onMessage(Message message, byte[] pattern) {
+        String body = new String(message.getBody(), StandardCharsets.UTF_8);
+        //下一次请求时重新加载
+        limits.invalidate(Long.valueOf(body));
+        log.debug("秒杀券{}的限流配置已修改", body);
+    }
+
+    /**
+     * 本地没有时从redis加载，加载不放在缓存的计算中，访问redis时不阻塞其他券
+     * 并发加载时使用先放入的那个，令牌桶只有一个
+     */
+    private Limit limit(Long voucherId) {
+        Limit limit = limits.getIfPresent(voucherId);
+        if (limit != null) {
+            return limit;
+        }
+        limit = load(voucherId);
+        Limit existing = limits.asMap().putIfAbsent(voucherId, limit);
+        return existing == null ? limit : existing;
+    }
+
+    /**
+     * 从redis加载券的速率，没有配置时使用默认值
+     */
+    private Limit load(Long voucherId) {
+        List<Object> values = stringRedisTemplate.opsForHash()
+                .multiGet(SECKILL_LIMIT_KEY + voucherId, Arrays.asList(QPS, LOCAL_QPS));
+        int qps = parse(values.get(0), defaultQps);
+        int localQps = parse(values.get(1), defaultLocalQps);
+        return new Limit(qps, localQps > 0 ? new LocalBucket(localQps, capacity(localQps)) : null);
+    }
+
+    private int parse(Object value, int defaultValue) {
+        return value == null || StrUtil.isBlank(value.toString()) ? defaultValue : Integer.parseInt(value.toString());
+    }
+
+    private long capacity(int qps) {
+        return Math.max(1, (long) (qps * burstSeconds));
+    }
+
+    private static class Limit {
+        private final int qps;
+        private final LocalBucket local;
+
+        private Limit(int qps, LocalBucket local) {
+            this.qps = qps;
+            this.local = local;
+        }
+    }
+
+    /**
+     * 本节点的令牌桶：记录下一个令牌的理论可用时间，每放行一个请求向后推进一个令牌的间隔
+     * 推进后超过当前时间一个桶容量的间隔时说明桶已经空了
+     */
+    private static class LocalBucket {
+        //生成一个令牌的间隔
+        private final long intervalNanos;
+        //桶满时可以提前消费的时间
+        private final long burstNanos;
+        private final AtomicLong nextTime;
+
+        private LocalBucket(int qps, long capacity) {
+            this.intervalNanos = TimeUnit.SECONDS.toNanos(1) / qps;
+            this.burstNanos = intervalNanos * capacity;
+            this.nextTime = new AtomicLong(System.nanoTime());
+        }
+
+        private boolean tryAcquire() {
+            long now = System.nanoTime();
+            while (true) {
+                long current = nextTime.get();
+                //空闲之后从当前时间开始推进，积累的令牌不超过桶的容量
+                long next = Math.max(current, now) + intervalNanos;
+                if (next - now > burstNanos) {
+                    return false;
+                }
+                if (nextTime.compareAndSet(current, next)) {
+                    return true;
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,180 @@
+package com.hmdp.utils;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.hmdp.entity.SeckillVoucher;
+import com.hmdp.service.ISeckillVoucherService;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.redis.connection.StringRedisConnection;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.Resource;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+import static com.hmdp.utils.RedisConstants.SECKILL_ORDER_KEY;
+import static com.hmdp.utils.RedisConstants.SECKILL_STOCK_KEY;
+
+/**
+ * 秒杀库存分片：一张秒杀券的库存拆到多个key中，每个分片使用自己的hash tag，集群中可以分布在不同的节点上
+ * 分片的key：seckill:stock:{优惠券id:分片} 和 seckill:order:{优惠券id:分片}
+ * 用户按id的hash固定属于一个分片，一人一单只在这个分片上判断；这个分片没有库存时再依次去其他分片扣库存
+ * 分片数为1的秒杀券使用 seckill:stock:{优惠券id} 和 seckill:order:{优惠券id}，由seckill.lua抢购
+ */
+@Component
+public class SeckillStockShards {
+
+    //在用户所属的分片上抢购
+    private static final DefaultRedisScript<Long> SHARD_SCRIPT;
+    //在其他分片上扣库存
+    private static final DefaultRedisScript<Long> SHARD_STOCK_SCRIPT;
+    static {
+        SHARD_SCRIPT = new DefaultRedisScript<>();
+        SHARD_SCRIPT.setLocation(new ClassPathResource("seckill_shard.lua"));
+        SHARD_SCRIPT.setResultType(Long.class);
+        SHARD_STOCK_SCRIPT = new DefaultRedisScript<>();
+        SHARD_STOCK_SCRIPT.setLocation(new ClassPathResource("seckill_shard_stock.lua"));
+        SHARD_STOCK_SCRIPT.setResultType(Long.class);
+    }
+
+    //不存在的秒杀券占位
+    private static final int UNKNOWN = 0;
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+    @Resource
+    private ISeckillVoucherService seckillVoucherService;
+
+    //优惠券id -> 分片数，创建后不会改变
+    private final Map<Long, Integer> shardCounts = new ConcurrentHashMap<>();
+    //不存在的秒杀券，优惠券id来自请求路径，数量有上限；只保存很短的时间，其他节点新建的券很快可以查到
+    private final Cache<Long, Integer> unknown = Caffeine.newBuilder()
+            .maximumSize(10_000)
+            .expireAfterWrite(1, TimeUnit.SECONDS)
+            .build();
+
+    /**
+     * 查询秒杀券的分片数，第一次查询数据库后缓存在本地，秒杀券不存在时缓存一个占位，短时间内不再查询数据库
+     */
+    public int shardCount(Long voucherId) {
+        Integer shards = shardCounts.get(voucherId);
+        if (shards == null) {
+            shards = unknown.get(voucherId, id -> {
+                SeckillVoucher seckillVoucher = seckillVoucherService.getById(id);
+                if (seckillVoucher == null) {
+                    return UNKNOWN;
+                }
+                //改造前创建的券没有分片数
+                return seckillVoucher.getStockShards() == null ? 1 : seckillVoucher.getStockShards();
+            });
+            if (shards != UNKNOWN) {
+                shardCounts.put(voucherId, shards);
+                unknown.invalidate(voucherId);
+            }
+        }
+        return shards == UNKNOWN ? 1 : shards;
+    }
+
+    /**
+     * 用户所属的分片
+     */
+    public static int homeShard(Long userId, int shards) {
+        //先打散再取模，连续的用户id均匀分布到各个分片
+        return Math.floorMod(Long.hashCode(userId * 0x9E3779B97F4A7C15L), shards);
+    }
+
+    /**
+     * 没有分片的秒杀券的库存key，hash tag为优惠券id
+     */
+    public static String stockKey(Long voucherId) {
+        return SECKILL_STOCK_KEY + "{" + voucherId + "}";
+    }
+
+    public static String orderKey(Long voucherId) {
+        return SECKILL_ORDER_KEY + "{" + voucherId + "}";
+    }
+
+    public static String stockKey(Long voucherId, int shard) {
+        return SECKILL_STOCK_KEY + "{" + voucherId + ":" + shard + "}";
+    }
+
+    public static String orderKey(Long voucherId, int shard) {
+        return SECKILL_ORDER_KEY + "{" + voucherId + ":" + shard + "}";
+    }
+
+    /**
+     * 把库存平均分到各个分片，除不尽的部分给前面的分片各加一
+     */
+    public static int[] distribute(int total, int shards) {
+        int[] counts = new int[shards];
+        for (int i = 0; i < shards; i++) {
+            counts[i] = total / shards + (i < total % shards ? 1 : 0);
+        }
+        return counts;
+    }
+
+    /**
+     * 初始化各个分片的库存
+     */
+    public void initStock(Long voucherId, int total, int shards) {
+        int[] counts = distribute(total, shards);
+        stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            StringRedisConnection conn = (StringRedisConnection) connection;
+            for (int i = 0; i < shards; i++) {
+                conn.set(stockKey(voucherId, i), String.valueOf(counts[i]));
+            }
+            return null;
+        });
+        shardCounts.put(voucherId, shards);
+        unknown.invalidate(voucherId);
+    }
+
+    /**
+     * 补充库存，增加的数量同样平均分到各个分片
+     */
+    public void addStock(Long voucherId, int count, int shards) {
+        int[] counts = distribute(count, shards);
+        stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            StringRedisConnection conn = (StringRedisConnection) connection;
+            for (int i = 0; i < shards; i++) {
+                if (counts[i] > 0) {
+                    conn.incrBy(stockKey(voucherId, i), counts[i]);
+                }
+            }
+            return null;
+        });
+    }
+
+    /**
+     * 抢购，返回值和seckill.lua一致
+     * @return 0：成功，1：所有分片都没有库存，2：重复下单，4：还没开始，5：已经结束
+     */
+    public int tryAcquire(Long voucherId, Long userId, int shards) {
+        int home = homeShard(userId, shards);
+        //1.在用户所属的分片上判断一人一单并扣库存
+        Long result = stringRedisTemplate.execute(SHARD_SCRIPT,
+                Arrays.asList(stockKey(voucherId, home), orderKey(voucherId, home), SeckillWindows.windowKey(voucherId, home)),
+                userId.toString());
+        int r = result.intValue();
+        if (r != 3) {
+            return r;
+        }
+        //2.所属分片没有库存，依次去其他分片扣库存
+        for (int i = 1; i < shards; i++) {
+            int shard = (home + i) % shards;
+            Long stock = stringRedisTemplate.execute(SHARD_STOCK_SCRIPT, Collections.singletonList(stockKey(voucherId, shard)));
+            if (stock != null && stock == 0L) {
+                return 0;
+            }
+        }
+        //3.所有分片都没有库存，撤销所属分片上的下单记录
+        stringRedisTemplate.opsForSet().remove(orderKey(voucherId, home), userId.toString());
+        return 1;
+    }
+}
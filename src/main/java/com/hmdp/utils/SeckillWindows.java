@@ -0,0 +1,132 @@
+package com.hmdp.utils;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.hmdp.entity.SeckillVoucher;
+import com.hmdp.service.ISeckillVoucherService;
+import org.springframework.data.redis.connection.StringRedisConnection;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.Resource;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+import static com.hmdp.utils.RedisConstants.SECKILL_WINDOW_KEY;
+
+/**
+ * 秒杀券的抢购时间
+ * redis中保存一份，由秒杀脚本和扣库存一起原子地判断；本地缓存一份，开始前和结束后的请求在本节点直接拒绝
+ * 分片的秒杀券在每个分片的hash tag下各保存一份，和分片的库存在同一个slot中
+ * 没有保存抢购时间的券（改造前创建的）不限制
+ */
+@Component
+public class SeckillWindows {
+
+    //返回值和秒杀脚本一致
+    public static final int NOT_STARTED = 4;
+    public static final int ENDED = 5;
+
+    private static final String BEGIN = "begin";
+    private static final String END = "end";
+
+    //不存在的秒杀券占位，和查到的抢购时间分开保存
+    private static final long[] UNKNOWN = new long[0];
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+    @Resource
+    private ISeckillVoucherService seckillVoucherService;
+
+    //优惠券id -> [开始时间, 结束时间]，毫秒，创建后不会改变
+    private final Map<Long, long[]> windows = new ConcurrentHashMap<>();
+    //不存在的秒杀券，优惠券id来自请求路径，数量有上限；只保存很短的时间，其他节点新建的券很快可以查到
+    private final Cache<Long, long[]> unknown = Caffeine.newBuilder()
+            .maximumSize(10_000)
+            .expireAfterWrite(1, TimeUnit.SECONDS)
+            .build();
+
+    public static String windowKey(Long voucherId) {
+        return SECKILL_WINDOW_KEY + "{" + voucherId + "}";
+    }
+
+    public static String windowKey(Long voucherId, int shard) {
+        return SECKILL_WINDOW_KEY + "{" + voucherId + ":" + shard + "}";
+    }
+
+    /**
+     * 保存抢购时间到redis和本地
+     */
+    public void save(Long voucherId, LocalDateTime beginTime, LocalDateTime endTime, int shards) {
+        long[] window = {toMillis(beginTime, 0L), toMillis(endTime, Long.MAX_VALUE)};
+        Map<String, String> fields = new HashMap<>();
+        fields.put(BEGIN, String.valueOf(window[0]));
+        fields.put(END, String.valueOf(window[1]));
+        stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            StringRedisConnection conn = (StringRedisConnection) connection;
+            if (shards > 1) {
+                for (int i = 0; i < shards; i++) {
+                    conn.hMSet(windowKey(voucherId, i), fields);
+                }
+            } else {
+                conn.hMSet(windowKey(voucherId), fields);
+            }
+            return null;
+        });
+        windows.put(voucherId, window);
+        unknown.invalidate(voucherId);
+    }
+
+    /**
+     * 用本地的抢购时间判断，第一次判断时从数据库加载，秒杀券不存在时缓存一个占位，短时间内不再查询数据库
+     * @return 0：在抢购时间内，4：还没开始，5：已经结束
+     */
+    public int check(Long voucherId) {
+        long[] window = windows.get(voucherId);
+        if (window == null) {
+            window = unknown.get(voucherId, this::load);
+            if (window != UNKNOWN) {
+                windows.put(voucherId, window);
+                unknown.invalidate(voucherId);
+            }
+        }
+        if (window == UNKNOWN) {
+            return 0;
+        }
+        long now = System.currentTimeMillis();
+        if (now < window[0]) {
+            return NOT_STARTED;
+        }
+        if (now >= window[1]) {
+            return ENDED;
+        }
+        return 0;
+    }
+
+    /**
+     * 本地已经加载的抢购结束时间，毫秒，没有结束时间的为Long.MAX_VALUE
+     * @return 还没有加载或者秒杀券不存在时返回-1
+     */
+    public long endTime(Long voucherId) {
+        long[] window = windows.get(voucherId);
+        return window == null ? -1 : window[1];
+    }
+
+    /**
+     * 从数据库加载抢购时间，秒杀券不存在时返回占位
+     */
+    private long[] load(Long voucherId) {
+        SeckillVoucher seckillVoucher = seckillVoucherService.getById(voucherId);
+        return seckillVoucher == null ? UNKNOWN
+                : new long[]{toMillis(seckillVoucher.getBeginTime(), 0L), toMillis(seckillVoucher.getEndTime(), Long.MAX_VALUE)};
+    }
+
+    private static long toMillis(LocalDateTime time, long defaultValue) {
+        return time == null ? defaultValue : time.atZone(ZoneId.systemDefault()).toInstant().toEpochMilli();
+    }
+}
@@ -0,0 +1,218 @@
+package com.hmdp.utils;
+
+import cn.hutool.core.util.BooleanUtil;
+import com.hmdp.entity.Shop;
+import com.hmdp.mapper.ShopMapper;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.ibatis.cursor.Cursor;
+import org.apache.ibatis.session.SqlSession;
+import org.apache.ibatis.session.SqlSessionFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.ApplicationArguments;
+import org.springframework.boot.ApplicationRunner;
+import org.springframework.data.geo.Point;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.RedisTemplate;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PreDestroy;
+import javax.annotation.Resource;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.IntStream;
+
+import static com.hmdp.utils.RedisConstants.*;
+
+/**
+ * 店铺缓存预热：流式遍历tb_shop，分批并行编码，用管道写入逻辑过期的店铺缓存和按类型分组的店铺坐标
+ * 启动时在ApplicationRunner中同步执行，执行完成前应用的readiness一直是REFUSING_TRAFFIC，不会接收流量
+ */
+@Slf4j
+@Component
+public class ShopCacheWarmer implements ApplicationRunner {
+
+    @Resource
+    private SqlSessionFactory sqlSessionFactory;
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+    @Resource
+    private RedisTemplate<String, byte[]> cacheRedisTemplate;
+    @Resource
+    private CacheSerializer cacheSerializer;
+    @Resource
+    private CacheClient cacheClient;
+    @Resource
+    private ShopMapper shopMapper;
+    @Resource
+    private CacheMetrics cacheMetrics;
+
+    @Value("${hmdp.warmup.enabled:true}")
+    private boolean enabled;
+    //每批写入redis的店铺个数
+    @Value("${hmdp.warmup.chunk-size:500}")
+    private int chunkSize;
+    //其他节点正在预热时，最多等待的秒数
+    @Value("${hmdp.warmup.wait-seconds:300}")
+    private long waitSeconds;
+
+    //管道写入放在单独的线程中，和下一批的读取、编码同时进行
+    private final ExecutorService writeExecutor = Executors.newSingleThreadExecutor();
+
+    private final AtomicBoolean running = new AtomicBoolean();
+    private final AtomicLong processed = new AtomicLong();
+    private volatile long beginTime;
+    private volatile long endTime;
+
+    @Override
+    public void run(ApplicationArguments args) throws Exception {
+        if (!enabled) {
+            return;
+        }
+        //已经预热过的数据没有设置ttl，一直保存在redis中，重启时不用再预热；之后被删除的店铺在查询未命中时从数据库加载
+        if (BooleanUtil.isTrue(stringRedisTemplate.hasKey(CACHE_WARMUP_SHOP_KEY))) {
+            log.info("店铺缓存已经预热过，跳过");
+            return;
+        }
+        Boolean isLock = stringRedisTemplate.opsForValue().setIfAbsent(LOCK_WARMUP_SHOP_KEY, "1", LOCK_WARMUP_TTL, TimeUnit.MINUTES);
+        if (BooleanUtil.isTrue(isLock)) {
+            try {
+                warmUp();
+                stringRedisTemplate.opsForValue().set(CACHE_WARMUP_SHOP_KEY, String.valueOf(System.currentTimeMillis()));
+            } finally {
+                stringRedisTemplate.delete(LOCK_WARMUP_SHOP_KEY);
+            }
+            return;
+        }
+        //其他节点正在预热，等它完成后再接收流量
+        long deadline = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(waitSeconds);
+        while (!BooleanUtil.isTrue(stringRedisTemplate.hasKey(CACHE_WARMUP_SHOP_KEY))
+                && System.currentTimeMillis() < deadline) {
+            Thread.sleep(1000);
+        }
+    }
+
+    /**
+     * 手动触发预热，在后台执行
+     * @return 已经在预热时返回false
+     */
+    public boolean warmUpAsync() {
+        if (running.get()) {
+            return false;
+        }
+        CompletableFuture.runAsync(this::warmUp);
+        return true;
+    }
+
+    /**
+     * 预热的进度
+     */
+    public Map<String, Object> progress() {
+        Map<String, Object> progress = new HashMap<>();
+        long now = running.get() ? System.currentTimeMillis() : endTime;
+        long cost = Math.max(1, now - beginTime);
+        progress.put("running", running.get());
+        progress.put("processed", processed.get());
+        progress.put("costMillis", cost);
+        progress.put("perSecond", processed.get() * 1000 / cost);
+        return progress;
+    }
+
+    private void warmUp() {
+        if (!running.compareAndSet(false, true)) {
+            return;
+        }
+        beginTime = System.currentTimeMillis();
+        processed.set(0);
+        CompletableFuture<Void> lastWrite = CompletableFuture.completedFuture(null);
+        try (SqlSession session = sqlSessionFactory.openSession();
+             Cursor<Shop> cursor = session.getMapper(ShopMapper.class).scanAll()) {
+            List<Shop> chunk = new ArrayList<>(chunkSize);
+            for (Shop shop : cursor) {
+                chunk.add(shop);
+                if (chunk.size() == chunkSize) {
+                    lastWrite = writeChunk(chunk, lastWrite);
+                    chunk = new ArrayList<>(chunkSize);
+                }
+            }
+            if (!chunk.isEmpty()) {
+                lastWrite = writeChunk(chunk, lastWrite);
+            }
+            lastWrite.join();
+            endTime = System.currentTimeMillis();
+            log.info("店铺缓存预热完成，共{}家店铺，耗时{}ms，{}家/秒", processed.get(), endTime - beginTime,
+                    processed.get() * 1000 / Math.max(1, endTime - beginTime));
+        } catch (Exception e) {
+            endTime = System.currentTimeMillis();
+            log.error("店铺缓存预热失败，已写入{}家店铺", processed.get(), e);
+            throw new RuntimeException(e);
+        } finally {
+            running.set(false);
+        }
+    }
+
+    @PreDestroy
+    public void shutdown() throws InterruptedException {
+        writeExecutor.shutdown();
+        writeExecutor.awaitTermination(5, TimeUnit.SECONDS);
+    }
+
+    /**
+     * 并行编码一批店铺，等上一批写完后再用管道写入，同一时间只有一批在写，内存中最多保留两批
+     * 店铺缓存和重建一样按版本号比较后写入，预热期间被修改过的店铺不会被覆盖成旧数据
+     * 流式读取的单行耗时远小于按id查询，每批用第一家店铺按id查询一次，作为这批店铺的重建耗时，提前刷新才能生效
+     */
+    private CompletableFuture<Void> writeChunk(List<Shop> chunk, CompletableFuture<Void> lastWrite) {
+        long ttl = TimeUnit.MINUTES.toMillis(CACHE_SHOP_TTL);
+        long now = System.currentTimeMillis();
+        List<String> keys = new ArrayList<>(chunk.size());
+        for (Shop shop : chunk) {
+            keys.add(CACHE_SHOP_KEY + shop.getId());
+        }
+        long[] versions = cacheClient.readVersions(keys);
+        int rebuildCost = sampleRebuildCost(chunk.get(0).getId());
+        //逻辑过期时间加上随机的偏移，避免预热的店铺在同一时间集中过期
+        List<byte[]> values = new ArrayList<>(chunk.size());
+        IntStream.range(0, chunk.size()).parallel()
+                .mapToObj(i -> cacheSerializer.writeLogical(chunk.get(i),
+                        now + ttl + ThreadLocalRandom.current().nextLong(ttl / 10 + 1), rebuildCost, versions[i]))
+                .forEachOrdered(values::add);
+        //上一批写入失败时直接结束
+        lastWrite.join();
+        return CompletableFuture.runAsync(() -> {
+            cacheClient.compareAndSetAll(keys, values, versions, new long[chunk.size()]);
+            cacheRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+                for (Shop shop : chunk) {
+                    if (shop.getX() != null && shop.getY() != null) {
+                        connection.geoAdd((SHOP_GEO_KEY + shop.getTypeId()).getBytes(StandardCharsets.UTF_8),
+                                new Point(shop.getX(), shop.getY()), shop.getId().toString().getBytes(StandardCharsets.UTF_8));
+                    }
+                }
+                return null;
+            });
+            long count = processed.addAndGet(chunk.size());
+            log.debug("店铺缓存预热进度：{}家，{}家/秒", count, count * 1000 / Math.max(1, System.currentTimeMillis() - beginTime));
+        }, writeExecutor);
+    }
+
+    /**
+     * 按id查询一次店铺，和缓存重建的查询相同，返回耗时的毫秒数，至少为1
+     */
+    private int sampleRebuildCost(Long id) {
+        long begin = System.nanoTime();
+        shopMapper.selectById(id);
+        long millis = Math.max(1, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - begin));
+        cacheMetrics.recordDbLoad(CACHE_SHOP_KEY, millis);
+        return (int) millis;
+    }
+}
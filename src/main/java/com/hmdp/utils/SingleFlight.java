@@ -0,0 +1,84 @@
+package com.hmdp.utils;
+
+import java.util.concurrent.*;
+import java.util.function.Supplier;
+
+/**
+ * 同一个jvm中对同一个key的并发加载只执行一次，其他线程共享这一次的结果
+ * 缓存同时失效时，只有一个线程查询数据库和竞争分布式锁
+ */
+public class SingleFlight {
+
+    private final ConcurrentHashMap<String, CompletableFuture<Object>> calls = new ConcurrentHashMap<>();
+
+    /**
+     * 执行加载，已经有线程在加载这个key时等待它的结果
+     * @param key
+     * @param loader 加载数据的方法，只由第一个线程执行
+     * @param timeoutMillis 等待其他线程加载的最长时间
+     * @param onTimeout 等待超时后的处理
+     * @return 加载的结果
+     * @param <T>
+     */
+    @SuppressWarnings("unchecked")
+    public <T> T execute(String key, Supplier<T> loader, long timeoutMillis, Supplier<T> onTimeout) {
+        CompletableFuture<Object> call = begin(key);
+        if (call != null) {
+            //当前线程负责加载
+            try {
+                T value = loader.get();
+                call.complete(value);
+                return value;
+            } catch (RuntimeException | Error e) {
+                call.completeExceptionally(e);
+                throw e;
+            } finally {
+                calls.remove(key, call);
+            }
+        }
+        CompletableFuture<Object> inFlight = calls.get(key);
+        if (inFlight == null) {
+            //加载刚好结束，重新执行一次
+            return execute(key, loader, timeoutMillis, onTimeout);
+        }
+        try {
+            return (T) inFlight.get(timeoutMillis, TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+            return onTimeout.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return onTimeout.get();
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            throw cause instanceof RuntimeException ? (RuntimeException) cause : new RuntimeException(cause);
+        }
+    }
+
+    /**
+     * 尝试成为这个key的加载者
+     * @return 成功返回本次加载的future，加载完成后要调用finish；已经有其他线程在加载时返回null
+     */
+    public CompletableFuture<Object> begin(String key) {
+        CompletableFuture<Object> call = new CompletableFuture<>();
+        return calls.putIfAbsent(key, call) == null ? call : null;
+    }
+
+    /**
+     * 加载结束，唤醒等待的线程
+     */
+    public void finish(String key, CompletableFuture<Object> call, Object value, Throwable error) {
+        calls.remove(key, call);
+        if (error != null) {
+            call.completeExceptionally(error);
+        } else {
+            call.complete(value);
+        }
+    }
+
+    /**
+     * 当前正在加载的key的个数
+     */
+    public int inFlight() {
+        return calls.size();
+    }
+}
@@ -0,0 +1,123 @@
+package com.hmdp.utils;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.Expiry;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.connection.Message;
+import org.springframework.data.redis.connection.MessageListener;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.stereotype.Component;
+
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+import static com.hmdp.utils.RedisConstants.SECKILL_SOLD_OUT_CHANNEL;
+
+/**
+ * 秒杀券本地的售罄标记，售罄后的请求在本节点直接拒绝，不再执行lua脚本
+ * 标记通过redis的发布订阅同步到所有节点，补充库存时清除
+ * 标记有有效期：补充库存时，其他节点上补充前就已经在执行的请求可能在清除消息之后才设置标记，
+ * 过期后重新执行一次脚本就能发现库存已经恢复
+ * 只标记本地已经加载了抢购时间的秒杀券，不存在的券不标记、不广播；标记最晚在抢购结束时过期，结束后由抢购时间拒绝
+ */
+@Slf4j
+@Component
+public class SoldOutFlags implements MessageListener {
+
+    private static final String SET = "set:";
+    private static final String CLEAR = "clear:";
+
+    private final StringRedisTemplate stringRedisTemplate;
+
+    //优惠券id -> 标记的过期时间，毫秒，到期后由caffeine删除
+    private final Cache<Long, Long> flags = Caffeine.newBuilder()
+            .maximumSize(10_000)
+            .expireAfter(new Expiry<Long, Long>() {
+                @Override
+                public long expireAfterCreate(Long voucherId, Long expireTime, long currentTime) {
+                    return TimeUnit.MILLISECONDS.toNanos(Math.max(0, expireTime - System.currentTimeMillis()));
+                }
+
+                @Override
+                public long expireAfterUpdate(Long voucherId, Long expireTime, long currentTime, long currentDuration) {
+                    return expireAfterCreate(voucherId, expireTime, currentTime);
+                }
+
+                @Override
+                public long expireAfterRead(Long voucherId, Long expireTime, long currentTime, long currentDuration) {
+                    return currentDuration;
+                }
+            })
+            .build();
+
+    private final SeckillWindows seckillWindows;
+
+    private final long ttlMillis;
+
+    private final Counter hitCounter;
+
+    public SoldOutFlags(StringRedisTemplate stringRedisTemplate, SeckillWindows seckillWindows, MeterRegistry meterRegistry,
+                        @Value("${hmdp.seckill.sold-out-ttl-seconds:60}") long ttlSeconds) {
+        this.stringRedisTemplate = stringRedisTemplate;
+        this.seckillWindows = seckillWindows;
+        this.ttlMillis = TimeUnit.SECONDS.toMillis(ttlSeconds);
+        this.hitCounter = Counter.builder("seckill.sold_out.hits").register(meterRegistry);
+        Gauge.builder("seckill.sold_out.vouchers", flags, Cache::estimatedSize).register(meterRegistry);
+    }
+
+    /**
+     * 优惠券是否已经售罄，命中时计数
+     */
+    public boolean isSoldOut(Long voucherId) {
+        if (flags.getIfPresent(voucherId) == null) {
+            return false;
+        }
+        hitCounter.increment();
+        return true;
+    }
+
+    /**
+     * 标记售罄，并通知其他节点；本地没有抢购时间（券不存在）或者已经结束的不标记
+     */
+    public void markSoldOut(Long voucherId) {
+        long now = System.currentTimeMillis();
+        long endTime = seckillWindows.endTime(voucherId);
+        if (endTime <= now) {
+            return;
+        }
+        if (flags.asMap().put(voucherId, Math.min(now + ttlMillis, endTime)) == null) {
+            stringRedisTemplate.convertAndSend(SECKILL_SOLD_OUT_CHANNEL, SET + voucherId);
+        }
+    }
+
+    /**
+     * 补充库存后清除标记，并通知其他节点
+     */
+    public void clear(Long voucherId) {
+        flags.invalidate(voucherId);
+        stringRedisTemplate.convertAndSend(SECKILL_SOLD_OUT_CHANNEL, CLEAR + voucherId);
+    }
+
+    @Override
+    public void onMessage(Message message, byte[] pattern) {
+        String body = new String(message.getBody(), StandardCharsets.UTF_8);
+        if (body.startsWith(SET)) {
+            //发送的节点已经确认券存在，本节点还没有加载抢购时间时只按有效期过期
+            Long voucherId = Long.valueOf(body.substring(SET.length()));
+            long now = System.currentTimeMillis();
+            long endTime = seckillWindows.endTime(voucherId);
+            long expireTime = endTime < 0 ? now + ttlMillis : Math.min(now + ttlMillis, endTime);
+            if (expireTime > now) {
+                flags.asMap().putIfAbsent(voucherId, expireTime);
+            }
+        } else if (body.startsWith(CLEAR)) {
+            flags.invalidate(Long.valueOf(body.substring(CLEAR.length())));
+        }
+        log.debug("收到售罄标记消息:{}", body);
+    }
+}
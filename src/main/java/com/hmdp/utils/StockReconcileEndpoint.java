@@ -0,0 +1,26 @@
+package com.hmdp.utils;
+
+import org.springframework.boot.actuate.endpoint.annotation.Endpoint;
+import org.springframework.boot.actuate.endpoint.annotation.ReadOperation;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.Resource;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * actuator的库存对账端点：/actuator/reconcile
+ * 列出本节点最近的对账报告，从新到旧；对账只在拿到锁的节点上执行，其他节点可能没有报告
+ */
+@Component
+@Endpoint(id = "reconcile")
+public class StockReconcileEndpoint {
+
+    @Resource
+    private StockReconciler stockReconciler;
+
+    @ReadOperation
+    public List<Map<String, Object>> reports() {
+        return stockReconciler.reports();
+    }
+}
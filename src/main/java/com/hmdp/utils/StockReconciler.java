@@ -0,0 +1,425 @@
+package com.hmdp.utils;
+
+import com.hmdp.entity.SeckillVoucher;
+import com.hmdp.entity.VoucherOrder;
+import com.hmdp.mapper.SeckillVoucherMapper;
+import com.hmdp.service.ISeckillVoucherService;
+import com.hmdp.service.IVoucherOrderService;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.amqp.core.AmqpAdmin;
+import org.springframework.amqp.core.QueueInformation;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.redis.connection.StringRedisConnection;
+import org.springframework.data.redis.core.Cursor;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.ScanOptions;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.time.LocalDateTime;
+import java.util.*;
+
+import static com.hmdp.utils.RedisConstants.LOCK_RECONCILE_NAME;
+import static com.hmdp.utils.RedisConstants.LOCK_RECONCILE_TTL;
+import static com.hmdp.utils.RedisConstants.ORDER_CONSUMER_STALLED_KEY;
+import static com.hmdp.utils.RedisConstants.ORDER_JOURNAL_BACKLOG_KEY;
+
+/**
+ * redis和数据库的秒杀库存对账
+ * 每次只处理几张秒杀券，下一次从上次处理到的券继续（按券id的游标），处理完一轮后从头开始
+ * 已下单的用户用SSCAN分批读取，订单按id分页读取，都放到LongHashSet中比较，不会长时间占用redis
+ * 秒杀进行中两边的数据本来就有短暂的差异（消息还没有消费、分片之间的扣减），所以同一个差异连续两次对账都存在才修正：
+ * 1.redis中已下单、数据库中没有订单的用户：消息丢失，用下单时的订单id重新发送，消费者按主键和唯一索引去重
+ *   其中订单已经超时取消的用户不是消息丢失，而是取消后没有恢复redis，恢复下单记录和库存，不重新发送
+ *   订单还可能没有丢失，只是还没有保存：订单日志有积压、分区队列中有待消费的消息、分区没有消费者、消费者在等待数据库恢复，
+ *   这时只记录差异不修正，等这些订单处理完再确认
+ * 2.数据库中有订单、redis中没有下单记录的用户：补回下单记录，防止重复下单
+ * 3.数据库的库存加订单数应该等于redis的库存加已下单的用户数（都等于总库存），不相等时修正redis的库存
+ */
+@Slf4j
+@Component
+public class StockReconciler {
+
+    private static final DefaultRedisScript<List> SNAPSHOT_SCRIPT;
+    private static final DefaultRedisScript<Long> ADJUST_SCRIPT;
+    static {
+        SNAPSHOT_SCRIPT = new DefaultRedisScript<>();
+        SNAPSHOT_SCRIPT.setLocation(new ClassPathResource("seckill_stock_snapshot.lua"));
+        SNAPSHOT_SCRIPT.setResultType(List.class);
+        ADJUST_SCRIPT = new DefaultRedisScript<>();
+        ADJUST_SCRIPT.setLocation(new ClassPathResource("seckill_stock_adjust.lua"));
+        ADJUST_SCRIPT.setResultType(Long.class);
+    }
+
+    //保留最近的对账报告数
+    private static final int MAX_REPORTS = 100;
+
+    private final StringRedisTemplate stringRedisTemplate;
+    private final ISeckillVoucherService seckillVoucherService;
+    private final SeckillVoucherMapper seckillVoucherMapper;
+    private final IVoucherOrderService voucherOrderService;
+    private final OrderPublisher orderPublisher;
+    private final OrderStatusStore orderStatusStore;
+    private final AmqpAdmin amqpAdmin;
+    private final OrderPartitions orderPartitions;
+    private final RedisIdWorker redisIdWorker;
+    private final SoldOutFlags soldOutFlags;
+    private final OrderTimeoutScheduler orderTimeoutScheduler;
+
+    private final boolean enabled;
+    //每次对账的秒杀券数
+    private final int vouchersPerRun;
+    //每次SSCAN的count
+    private final int scanCount;
+    //每次查询的订单数
+    private final int pageSize;
+
+    //下一次从这个券id之后开始
+    private long cursor;
+    //上一次对账发现的差异，优惠券id -> 用户id
+    private final Map<Long, LongHashSet> missingOrders = new HashMap<>();
+    private final Map<Long, LongHashSet> missingBuyers = new HashMap<>();
+    //上一次对账发现的库存差异
+    private final Map<Long, Long> stockDrifts = new HashMap<>();
+
+    private final Deque<Map<String, Object>> reports = new ArrayDeque<>();
+
+    private final Counter republishedCounter;
+    private final Counter restoredCounter;
+    private final Counter correctedCounter;
+
+    public StockReconciler(StringRedisTemplate stringRedisTemplate, ISeckillVoucherService seckillVoucherService,
+                           SeckillVoucherMapper seckillVoucherMapper, IVoucherOrderService voucherOrderService,
+                           OrderPublisher orderPublisher, OrderStatusStore orderStatusStore, AmqpAdmin amqpAdmin,
+                           OrderPartitions orderPartitions, RedisIdWorker redisIdWorker, SoldOutFlags soldOutFlags,
+                           OrderTimeoutScheduler orderTimeoutScheduler, MeterRegistry meterRegistry,
+                           @Value("${hmdp.seckill.reconcile.enabled:true}") boolean enabled,
+                           @Value("${hmdp.seckill.reconcile.vouchers-per-run:10}") int vouchersPerRun,
+                           @Value("${hmdp.seckill.reconcile.scan-count:500}") int scanCount,
+                           @Value("${hmdp.seckill.reconcile.page-size:1000}") int pageSize) {
+        this.stringRedisTemplate = stringRedisTemplate;
+        this.seckillVoucherService = seckillVoucherService;
+        this.seckillVoucherMapper = seckillVoucherMapper;
+        this.voucherOrderService = voucherOrderService;
+        this.orderPublisher = orderPublisher;
+        this.orderStatusStore = orderStatusStore;
+        this.amqpAdmin = amqpAdmin;
+        this.orderPartitions = orderPartitions;
+        this.redisIdWorker = redisIdWorker;
+        this.soldOutFlags = soldOutFlags;
+        this.orderTimeoutScheduler = orderTimeoutScheduler;
+        this.enabled = enabled;
+        this.vouchersPerRun = vouchersPerRun;
+        this.scanCount = scanCount;
+        this.pageSize = pageSize;
+        this.republishedCounter = Counter.builder("seckill.reconcile.republished").register(meterRegistry);
+        this.restoredCounter = Counter.builder("seckill.reconcile.restored_buyers").register(meterRegistry);
+        this.correctedCounter = Counter.builder("seckill.reconcile.stock_corrected").register(meterRegistry);
+    }
+
+    /**
+     * 对账下一批秒杀券，多个节点中只有拿到锁的节点执行
+     */
+    @Scheduled(fixedDelayString = "${hmdp.seckill.reconcile.interval:60000}")
+    public void reconcile() {
+        if (!enabled) {
+            return;
+        }
+        SimpleRedisLock lock = new SimpleRedisLock(LOCK_RECONCILE_NAME, stringRedisTemplate);
+        if (!lock.tryLock(LOCK_RECONCILE_TTL)) {
+            return;
+        }
+        try {
+            List<SeckillVoucher> vouchers = seckillVoucherService.query()
+                    .select("voucher_id", "stock_shards")
+                    .gt("voucher_id", cursor)
+                    .orderByAsc("voucher_id")
+                    .last("limit " + vouchersPerRun)
+                    .list();
+            if (vouchers.isEmpty()) {
+                //一轮结束，下一次从头开始
+                cursor = 0;
+                return;
+            }
+            boolean ordersInFlight = ordersInFlight();
+            for (SeckillVoucher voucher : vouchers) {
+                try {
+                    reconcile(voucher.getVoucherId(), voucher.getStockShards() == null ? 1 : voucher.getStockShards(),
+                            ordersInFlight);
+                } catch (Exception e) {
+                    log.error("秒杀券{}对账失败", voucher.getVoucherId(), e);
+                }
+            }
+            cursor = vouchers.get(vouchers.size() - 1).getVoucherId();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * 最近的对账报告，从新到旧
+     */
+    public synchronized List<Map<String, Object>> reports() {
+        return new ArrayList<>(reports);
+    }
+
+    private void reconcile(Long voucherId, int shards, boolean ordersInFlight) {
+        //redis中没有这张券的数据（没有初始化或者已经手动删除），不对账
+        String firstStockKey = shards > 1 ? SeckillStockShards.stockKey(voucherId, 0) : SeckillStockShards.stockKey(voucherId);
+        if (!Boolean.TRUE.equals(stringRedisTemplate.hasKey(firstStockKey))) {
+            missingOrders.remove(voucherId);
+            missingBuyers.remove(voucherId);
+            stockDrifts.remove(voucherId);
+            return;
+        }
+        //1.两边的下单用户
+        LongHashSet buyers = scanBuyers(voucherId, shards);
+        LongHashSet orderUsers = new LongHashSet();
+        LongHashSet cancelledUsers = new LongHashSet();
+        loadOrderUsers(voucherId, orderUsers, cancelledUsers);
+
+        //2.redis中有、数据库中没有：连续两次都缺少的重新发送，订单已经取消的恢复redis
+        //  还有没处理完的订单时不确认差异，重新发送的订单和原来的订单id相同，原来的消息之后再到达也只保存一次
+        LongHashSet missingInDb = buyers.minus(orderUsers);
+        LongHashSet confirmed = ordersInFlight ? hold(missingOrders, voucherId, missingInDb)
+                : confirm(missingOrders, voucherId, missingInDb);
+        LongHashSet republish = confirmed.minus(cancelledUsers);
+        LongHashSet cancelled = confirmed.minus(republish);
+        cancelled.forEach(userId -> orderTimeoutScheduler.restore(voucherId, userId));
+        republish(voucherId, republish);
+
+        //3.数据库中有、redis中没有：连续两次都缺少的补回下单记录
+        LongHashSet missingInRedis = orderUsers.minus(buyers);
+        LongHashSet restore = confirm(missingBuyers, voucherId, missingInRedis);
+        if (!restore.isEmpty()) {
+            stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+                StringRedisConnection conn = (StringRedisConnection) connection;
+                restore.forEach(userId -> conn.sAdd(shards > 1
+                        ? SeckillStockShards.orderKey(voucherId, SeckillStockShards.homeShard(userId, shards))
+                        : SeckillStockShards.orderKey(voucherId), String.valueOf(userId)));
+                return null;
+            });
+            restoredCounter.increment(restore.size());
+        }
+
+        //4.比较两边的总库存，在上面的修正之后读取
+        long redisTotal = redisTotal(voucherId, shards);
+        Map<String, Object> db = seckillVoucherMapper.selectStockAndOrders(voucherId);
+        if (db == null) {
+            return;
+        }
+        long dbTotal = ((Number) db.get("stock")).longValue() + ((Number) db.get("orders")).longValue();
+        long drift = dbTotal - redisTotal;
+        long corrected = 0;
+        Long previousDrift = drift == 0 ? stockDrifts.remove(voucherId) : stockDrifts.put(voucherId, drift);
+        if (drift != 0 && previousDrift != null && previousDrift == drift) {
+            corrected = adjustStock(voucherId, shards, drift);
+            stockDrifts.remove(voucherId);
+            correctedCounter.increment(Math.abs(corrected));
+        }
+
+        report(voucherId, buyers.size(), orderUsers.size(), missingInDb.size(), republish.size(), cancelled.size(),
+                missingInRedis.size(), restore.size(), drift, corrected);
+    }
+
+    /**
+     * 和上一次的差异比较，返回连续两次都存在的差异；这次新出现的差异保存下来，下一次再确认
+     * 已经修正的差异不再保存，如果修正后仍然存在，需要再连续两次才会再次修正
+     */
+    private LongHashSet confirm(Map<Long, LongHashSet> previous, Long voucherId, LongHashSet current) {
+        LongHashSet last = previous.get(voucherId);
+        LongHashSet confirmed = new LongHashSet();
+        LongHashSet pending = new LongHashSet();
+        current.forEach(userId -> {
+            if (last != null && last.contains(userId)) {
+                confirmed.add(userId);
+            } else {
+                pending.add(userId);
+            }
+        });
+        if (pending.isEmpty()) {
+            previous.remove(voucherId);
+        } else {
+            previous.put(voucherId, pending);
+        }
+        return confirmed;
+    }
+
+    /**
+     * 只记录这次的差异，不确认任何差异，积压消失后下一次对账就可以确认
+     */
+    private LongHashSet hold(Map<Long, LongHashSet> previous, Long voucherId, LongHashSet current) {
+        if (current.isEmpty()) {
+            previous.remove(voucherId);
+        } else {
+            previous.put(voucherId, current);
+        }
+        return new LongHashSet();
+    }
+
+    /**
+     * 是否还有没保存的订单：节点的订单日志中有没发送的订单、消费者在等待数据库恢复、分区队列中有待消费的消息或者没有消费者
+     * 无法查询队列时也当作有，不修正
+     */
+    private boolean ordersInFlight() {
+        if (Boolean.TRUE.equals(stringRedisTemplate.hasKey(ORDER_JOURNAL_BACKLOG_KEY))
+                || Boolean.TRUE.equals(stringRedisTemplate.hasKey(ORDER_CONSUMER_STALLED_KEY))) {
+            return true;
+        }
+        try {
+            for (int i = 0; i < orderPartitions.count(); i++) {
+                QueueInformation info = amqpAdmin.getQueueInfo(OrderPartitions.queueName(i));
+                if (info == null || info.getMessageCount() > 0 || info.getConsumerCount() == 0) {
+                    return true;
+                }
+            }
+        } catch (Exception e) {
+            log.warn("查询订单队列失败，本次对账不重新发送订单", e);
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * 重新发送丢失的订单，使用下单时记录的订单id；记录已经过期时才生成新的id，这时原来的订单已经不可能再到达
+     */
+    private void republish(Long voucherId, LongHashSet userIds) {
+        if (userIds.isEmpty()) {
+            return;
+        }
+        List<Long> users = new ArrayList<>(userIds.size());
+        userIds.forEach(users::add);
+        List<Long> orderIds = orderStatusStore.orderIds(voucherId, users);
+        for (int i = 0; i < users.size(); i++) {
+            Long orderId = orderIds.get(i);
+            orderPublisher.publish(new VoucherOrder()
+                    .setId(orderId != null ? orderId : redisIdWorker.nextId("order"))
+                    .setUserId(users.get(i))
+                    .setVoucherId(voucherId)
+                    .setCreateTime(LocalDateTime.now()));
+        }
+        republishedCounter.increment(users.size());
+    }
+
+    /**
+     * 用SSCAN分批读取已下单的用户，每次只返回count个左右，不阻塞redis
+     */
+    private LongHashSet scanBuyers(Long voucherId, int shards) {
+        LongHashSet buyers = new LongHashSet();
+        ScanOptions options = ScanOptions.scanOptions().count(scanCount).build();
+        for (int i = 0; i < shards; i++) {
+            String key = shards > 1 ? SeckillStockShards.orderKey(voucherId, i) : SeckillStockShards.orderKey(voucherId);
+            try (Cursor<String> members = stringRedisTemplate.opsForSet().scan(key, options)) {
+                while (members.hasNext()) {
+                    buyers.add(Long.parseLong(members.next()));
+                }
+            } catch (IOException e) {
+                log.warn("关闭SSCAN游标失败:{}", key, e);
+            }
+        }
+        return buyers;
+    }
+
+    /**
+     * 按订单id分页读取订单的用户，没有取消的和已经取消的分开，每页从上一页最后的id之后开始，不使用offset
+     */
+    private void loadOrderUsers(Long voucherId, LongHashSet users, LongHashSet cancelledUsers) {
+        long lastId = 0;
+        while (true) {
+            List<VoucherOrder> page = voucherOrderService.query()
+                    .select("id", "user_id", "status")
+                    .eq("voucher_id", voucherId)
+                    .gt("id", lastId)
+                    .orderByAsc("id")
+                    .last("limit " + pageSize)
+                    .list();
+            for (VoucherOrder order : page) {
+                if (order.getStatus() != null && order.getStatus() == 4) {
+                    cancelledUsers.add(order.getUserId());
+                } else {
+                    users.add(order.getUserId());
+                }
+            }
+            if (page.size() < pageSize) {
+                return;
+            }
+            lastId = page.get(page.size() - 1).getId();
+        }
+    }
+
+    /**
+     * redis中的库存加已下单的用户数，每个分片的两个值在一个脚本中原子地读取
+     */
+    private long redisTotal(Long voucherId, int shards) {
+        long total = 0;
+        for (int i = 0; i < shards; i++) {
+            List<String> keys = shards > 1
+                    ? Arrays.asList(SeckillStockShards.stockKey(voucherId, i), SeckillStockShards.orderKey(voucherId, i))
+                    : Arrays.asList(SeckillStockShards.stockKey(voucherId), SeckillStockShards.orderKey(voucherId));
+            List<?> snapshot = stringRedisTemplate.execute(SNAPSHOT_SCRIPT, keys);
+            total += ((Number) snapshot.get(0)).longValue() + ((Number) snapshot.get(1)).longValue();
+        }
+        return total;
+    }
+
+    /**
+     * 修正redis的库存，增加时平均分到各个分片，减少时依次从有库存的分片扣减
+     * @return 实际修正的数量
+     */
+    private long adjustStock(Long voucherId, int shards, long drift) {
+        long applied = 0;
+        if (shards == 1) {
+            applied = stringRedisTemplate.execute(ADJUST_SCRIPT,
+                    Collections.singletonList(SeckillStockShards.stockKey(voucherId)), String.valueOf(drift));
+        } else if (drift > 0) {
+            int[] counts = SeckillStockShards.distribute((int) drift, shards);
+            for (int i = 0; i < shards; i++) {
+                if (counts[i] > 0) {
+                    applied += stringRedisTemplate.execute(ADJUST_SCRIPT,
+                            Collections.singletonList(SeckillStockShards.stockKey(voucherId, i)), String.valueOf(counts[i]));
+                }
+            }
+        } else {
+            for (int i = 0; i < shards && applied > drift; i++) {
+                applied += stringRedisTemplate.execute(ADJUST_SCRIPT,
+                        Collections.singletonList(SeckillStockShards.stockKey(voucherId, i)), String.valueOf(drift - applied));
+            }
+        }
+        if (applied > 0) {
+            soldOutFlags.clear(voucherId);
+        }
+        log.warn("秒杀券{}的redis库存和数据库不一致，差{}，已修正{}", voucherId, drift, applied);
+        return applied;
+    }
+
+    private synchronized void report(Long voucherId, int buyers, int orders, int missingOrders, int republished,
+                                     int cancelledRestored, int missingBuyers, int restored, long drift, long corrected) {
+        Map<String, Object> report = new LinkedHashMap<>();
+        report.put("voucherId", voucherId);
+        report.put("time", LocalDateTime.now().toString());
+        report.put("redisBuyers", buyers);
+        report.put("dbOrders", orders);
+        report.put("missingOrders", missingOrders);
+        report.put("republished", republished);
+        report.put("cancelledRestored", cancelledRestored);
+        report.put("missingBuyers", missingBuyers);
+        report.put("restoredBuyers", restored);
+        report.put("stockDrift", drift);
+        report.put("stockCorrected", corrected);
+        reports.addFirst(report);
+        while (reports.size() > MAX_REPORTS) {
+            reports.pollLast();
+        }
+        if (missingOrders > 0 || missingBuyers > 0 || drift != 0) {
+            log.info("秒杀券对账:{}", report);
+        } else {
+            log.debug("秒杀券对账:{}", report);
+        }
+    }
+}
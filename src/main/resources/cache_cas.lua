@@ -0,0 +1,33 @@
+--写入缓存前比较版本号，拒绝用旧版本覆盖新版本
+--1.参数列表
+--KEYS[1]：缓存key，KEYS[2]：缓存key的版本计数器，两个key在同一个slot
+--ARGV[1]：编码后的缓存值，ARGV[2]：查询数据库之前读到的版本号，ARGV[3]：有效期毫秒数，0表示不过期
+local version = tonumber(ARGV[2])
+
+--2.查询数据库之后缓存又被删除过，说明数据库已经更新，这次读到的可能是旧数据
+local counter = redis.call('get', KEYS[2])
+if(counter and tonumber(counter) > version) then
+    return 0
+end
+
+--3.已有的缓存是二进制格式（第一个字节为格式版本3）时，比较头部第12到19字节的版本号
+local current = redis.call('get', KEYS[1])
+if(current and string.len(current) >= 27 and string.byte(current, 1) == 3) then
+    local currentVersion = struct.unpack('>i8', current, 12)
+    if(currentVersion > version) then
+        if(counter) then
+            return 0
+        end
+        --计数器不存在（以前的计数器设置过有效期）：读取版本号之后没有删除过缓存，这次读到的就是最新数据，
+        --按已有缓存的版本号补回计数器，之后的删除从这个版本号继续加一
+        redis.call('set', KEYS[2], currentVersion)
+    end
+end
+
+--4.写入缓存
+if(tonumber(ARGV[3]) > 0) then
+    redis.call('set', KEYS[1], ARGV[1], 'PX', ARGV[3])
+else
+    redis.call('set', KEYS[1], ARGV[1])
+end
+return 1
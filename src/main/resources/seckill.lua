@@ -1,18 +1,35 @@
 --1.参数列表
---1.1.优惠券id
-local voucherId = ARGV[1]
---1.2.用户id
-local userId = ARGV[2]
+--KEYS[1]：库存key，KEYS[2]：订单key，KEYS[3]：抢购时间key，三个key使用相同的hash tag {优惠券id}，集群中在同一个slot
+--ARGV[1]：用户id
+--1.1.用户id
+local userId = ARGV[1]
 
 --2.数据key
 --2.1.库存key
-local stockKey = 'seckill:stock:' .. voucherId
+local stockKey = KEYS[1]
 --2.2.订单key
-local orderKey = 'seckill:order:' .. voucherId
+local orderKey = KEYS[2]
+--2.3.抢购时间key
+local windowKey = KEYS[3]
 
 --3.脚本业务
+--3.0.判断是否在抢购时间内，使用redis的时间；没有保存抢购时间的券不判断
+redis.replicate_commands()
+local window = redis.call('hmget', windowKey, 'begin', 'end')
+if(window[1] and window[2]) then
+    local time = redis.call('time')
+    local now = tonumber(time[1]) * 1000 + math.floor(tonumber(time[2]) / 1000)
+    if(now < tonumber(window[1])) then
+        --还没开始，返回4
+        return 4
+    end
+    if(now >= tonumber(window[2])) then
+        --已经结束，返回5
+        return 5
+    end
+end
 --3.1.判断库存是否充足，此处库存使用string类型储存，所有这里用tonumber类型转换
-if(tonumber(redis.call('get',stockKey)) <= 0) then
+if(tonumber(redis.call('get',stockKey) or '0') <= 0) then
     --库存不足
     return 1
 end
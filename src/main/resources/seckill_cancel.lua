@@ -0,0 +1,9 @@
+--超时取消订单后恢复redis中的库存和下单记录，两个key在同一个hash tag中
+--KEYS[1]：库存key，KEYS[2]：下单的用户集合key
+--ARGV[1]：用户id
+--只有下单记录还在时才加回库存，重复执行不会多加库存
+if(redis.call('srem', KEYS[2], ARGV[1]) == 0) then
+    return 0
+end
+redis.call('incrby', KEYS[1], 1)
+return 1
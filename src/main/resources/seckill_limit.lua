@@ -0,0 +1,33 @@
+--秒杀券的全局令牌桶，使用redis的时间，各个节点的时钟不一致也不影响
+--KEYS[1]：令牌桶的key，hash：tokens（剩余令牌数）、ts（上次补充令牌的毫秒时间）
+--ARGV[1]：每秒生成的令牌数  ARGV[2]：桶的容量
+--返回1：拿到令牌，0：没有令牌
+redis.replicate_commands()
+local rate = tonumber(ARGV[1])
+local capacity = tonumber(ARGV[2])
+local time = redis.call('time')
+local now = tonumber(time[1]) * 1000 + math.floor(tonumber(time[2]) / 1000)
+
+local bucket = redis.call('hmget', KEYS[1], 'tokens', 'ts')
+local tokens = tonumber(bucket[1])
+local ts = tonumber(bucket[2])
+if(tokens == nil or ts == nil) then
+    --第一次请求，桶是满的
+    tokens = capacity
+    ts = now
+end
+if(now > ts) then
+    --按经过的时间补充令牌，不超过容量
+    tokens = math.min(capacity, tokens + (now - ts) * rate / 1000)
+    ts = now
+end
+
+local allowed = 0
+if(tokens >= 1) then
+    tokens = tokens - 1
+    allowed = 1
+end
+redis.call('hset', KEYS[1], 'tokens', tostring(tokens), 'ts', tostring(ts))
+--桶装满需要的时间后没有请求，状态和满桶一样，可以删除
+redis.call('pexpire', KEYS[1], math.ceil(capacity * 1000 / rate) + 1000)
+return allowed
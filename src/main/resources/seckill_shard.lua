@@ -0,0 +1,41 @@
+--在用户所属的分片上抢购，一人一单只在这个分片上判断
+--1.参数列表
+--KEYS[1]：用户所属分片的库存key，KEYS[2]：用户所属分片的订单key，KEYS[3]：用户所属分片的抢购时间key，三个key使用相同的hash tag
+--ARGV[1]：用户id
+local stockKey = KEYS[1]
+local orderKey = KEYS[2]
+local windowKey = KEYS[3]
+local userId = ARGV[1]
+
+--判断是否在抢购时间内，使用redis的时间；没有保存抢购时间的券不判断
+redis.replicate_commands()
+local window = redis.call('hmget', windowKey, 'begin', 'end')
+if(window[1] and window[2]) then
+    local time = redis.call('time')
+    local now = tonumber(time[1]) * 1000 + math.floor(tonumber(time[2]) / 1000)
+    if(now < tonumber(window[1])) then
+        --还没开始，返回4
+        return 4
+    end
+    if(now >= tonumber(window[2])) then
+        --已经结束，返回5
+        return 5
+    end
+end
+
+--2.判断用户是否下单
+if(redis.call('sismember', orderKey, userId) == 1) then
+    --重复下单，返回2
+    return 2
+end
+--3.记录用户已下单，库存不足时也先占住，防止同一个用户同时在其他分片下单
+redis.call('sadd', orderKey, userId)
+--4.判断库存是否充足
+if(tonumber(redis.call('get', stockKey) or '0') <= 0) then
+    --本分片库存不足，返回3，由调用方去其他分片扣库存
+    return 3
+end
+--5.扣库存
+redis.call('incrby', stockKey, -1)
+--成功，返回0
+return 0
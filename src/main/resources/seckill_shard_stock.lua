@@ -0,0 +1,8 @@
+--用户所属分片库存不足时，在其他分片上扣库存，一人一单已经在用户所属的分片上判断过
+--KEYS[1]：分片的库存key
+if(tonumber(redis.call('get', KEYS[1]) or '0') <= 0) then
+    --库存不足
+    return 1
+end
+redis.call('incrby', KEYS[1], -1)
+return 0
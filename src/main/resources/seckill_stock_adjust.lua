@@ -0,0 +1,13 @@
+--对账时修正库存，减少时不会减到0以下
+--KEYS[1]：库存key
+--ARGV[1]：修正的数量，负数为减少
+--返回实际修正的数量
+local delta = tonumber(ARGV[1])
+if(delta < 0) then
+    local stock = tonumber(redis.call('get', KEYS[1]) or '0')
+    delta = math.max(delta, -math.max(stock, 0))
+end
+if(delta ~= 0) then
+    redis.call('incrby', KEYS[1], delta)
+end
+return delta
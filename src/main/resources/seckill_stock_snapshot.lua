@@ -0,0 +1,3 @@
+--对账时原子地读取一个分片（或没有分片的秒杀券）的库存和已下单的用户数
+--KEYS[1]：库存key，KEYS[2]：订单key，两个key使用相同的hash tag
+return {tonumber(redis.call('get', KEYS[1]) or '0'), redis.call('scard', KEYS[2])}
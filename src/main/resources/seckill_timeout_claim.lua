@@ -0,0 +1,11 @@
+--领取一个到期的超时订单：分数已经到期时改为租期结束的时间，其他节点在租期内不能再领取
+--订单处理完成后才从zset中删除，处理失败或者进程崩溃时租期过后可以重新领取
+--KEYS[1]：超时订单的zset
+--ARGV[1]：订单，ARGV[2]：当前时间，ARGV[3]：租期结束的时间
+local score = redis.call('zscore', KEYS[1], ARGV[1])
+if((not score) or tonumber(score) > tonumber(ARGV[2])) then
+    --已经处理完，或者其他节点正在处理
+    return 0
+end
+redis.call('zadd', KEYS[1], ARGV[3], ARGV[1])
+return 1
@@ -1,4 +1,4 @@
 if(redis.call('get',KEYS[1]) == ARGV[1]) then
-    return redis.call('del',KEY[1])
+    return redis.call('del',KEYS[1])
 end
 return 0
\ No newline at end of file
@@ -1,19 +1,49 @@
 package com.hmdp;
 
+import com.hmdp.entity.SeckillVoucher;
+import com.hmdp.entity.VoucherOrder;
+import com.hmdp.service.ISeckillVoucherService;
+import com.hmdp.service.IVoucherOrderService;
 import com.hmdp.service.impl.ShopServiceImpl;
 import com.hmdp.utils.RedisIdWorker;
+import com.hmdp.utils.SeckillStockShards;
+import com.hmdp.utils.SeckillWindows;
+import lombok.extern.slf4j.Slf4j;
+import org.junit.jupiter.api.Tag;
 import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.condition.EnabledIfSystemProperty;
 import org.springframework.amqp.rabbit.core.RabbitTemplate;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
 
 import javax.annotation.Resource;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.Executor;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
 
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+@Slf4j
 @SpringBootTest
 class HmDianPingApplicationTests {
+    //分片数为1时生产环境使用的脚本
+    private static final DefaultRedisScript<Long> SECKILL_SCRIPT;
+    static {
+        SECKILL_SCRIPT = new DefaultRedisScript<>();
+        SECKILL_SCRIPT.setLocation(new ClassPathResource("seckill.lua"));
+        SECKILL_SCRIPT.setResultType(Long.class);
+    }
+
     @Resource
     private RedisIdWorker redisIdWorker;
 
@@ -23,9 +53,193 @@ class HmDianPingApplicationTests {
     @Autowired
     private RabbitTemplate rabbitTemplate;
 
+    @Resource
+    private SeckillStockShards seckillStockShards;
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    @Resource
+    private IVoucherOrderService voucherOrderService;
+
+    @Resource
+    private ISeckillVoucherService seckillVoucherService;
+
     private ExecutorService es = Executors.newFixedThreadPool(500);
     @Test
     void testSaveShop() throws InterruptedException {
         shopService.saveShop2Redis(1L,10l);
     }
+
+    /**
+     * 分片库存并发抢购：库存少于用户数，每个用户请求两次，用户所属分片没有库存时去其他分片扣减
+     * 每个分片数都应该正好成功库存数次，每个用户最多一次，所有分片的库存扣到0，下单记录数等于库存
+     */
+    @Test
+    void testSeckillStockShardsNoOversellNoDuplicate() throws InterruptedException {
+        int stock = 1000;
+        int users = 3000;
+        for (int shards : new int[]{1, 4, 16}) {
+            long voucherId = System.currentTimeMillis() * 100 + shards;
+            seckillStockShards.initStock(voucherId, stock, shards);
+            try {
+                CountDownLatch latch = new CountDownLatch(users * 2);
+                AtomicInteger success = new AtomicInteger();
+                Set<Long> buyers = ConcurrentHashMap.newKeySet();
+                for (int i = 0; i < users * 2; i++) {
+                    long userId = i % users;
+                    es.submit(() -> {
+                        try {
+                            if (seckillStockShards.tryAcquire(voucherId, userId, shards) == 0) {
+                                success.incrementAndGet();
+                                buyers.add(userId);
+                            }
+                        } finally {
+                            latch.countDown();
+                        }
+                    });
+                }
+                latch.await();
+                assertEquals(stock, success.get(), "分片数:" + shards);
+                assertEquals(stock, buyers.size(), "分片数:" + shards);
+                long remaining = 0;
+                long orders = 0;
+                for (int i = 0; i < shards; i++) {
+                    remaining += Long.parseLong(stringRedisTemplate.opsForValue().get(SeckillStockShards.stockKey(voucherId, i)));
+                    orders += stringRedisTemplate.opsForSet().size(SeckillStockShards.orderKey(voucherId, i));
+                }
+                assertEquals(0, remaining, "分片数:" + shards);
+                assertEquals(stock, orders, "分片数:" + shards);
+            } finally {
+                //清理测试数据
+                for (int i = 0; i < shards; i++) {
+                    stringRedisTemplate.delete(Arrays.asList(SeckillStockShards.stockKey(voucherId, i), SeckillStockShards.orderKey(voucherId, i)));
+                }
+            }
+        }
+    }
+
+    /**
+     * 对比不同分片数下秒杀的吞吐量：每个分片数使用一张新的秒杀券，库存等于请求数，每个请求是不同的用户
+     * 分片数为1时和下单接口一样使用seckill.lua，其他分片数使用分片脚本；先预热一轮，再计时一轮
+     * 单个redis实例上所有分片仍在同一个核上执行，分片的收益要在集群中把分片分布到不同节点后才能体现
+     * 只在需要时手动运行：mvn test -Dtest=HmDianPingApplicationTests#benchmarkSeckillStockShards -Dbenchmark=true
+     */
+    @Test
+    @Tag("benchmark")
+    @EnabledIfSystemProperty(named = "benchmark", matches = "true")
+    void benchmarkSeckillStockShards() throws InterruptedException {
+        int warmup = 10000;
+        int requests = 100000;
+        for (int shards : new int[]{1, 2, 4, 8}) {
+            runSeckill(System.currentTimeMillis() * 100 + shards, shards, warmup);
+            long voucherId = System.currentTimeMillis() * 100 + shards;
+            long begin = System.nanoTime();
+            int success = runSeckill(voucherId, shards, requests);
+            long nanos = Math.max(1, System.nanoTime() - begin);
+            log.info("分片数:{}，请求:{}，成功:{}，耗时:{}ms，吞吐量:{} ops/s",
+                    shards, requests, success, nanos / 1_000_000, requests * 1_000_000_000L / nanos);
+        }
+    }
+
+    /**
+     * 初始化库存等于请求数的秒杀券，并发抢购后清理，返回成功的次数
+     */
+    private int runSeckill(long voucherId, int shards, int requests) throws InterruptedException {
+        if (shards == 1) {
+            stringRedisTemplate.opsForValue().set(SeckillStockShards.stockKey(voucherId), String.valueOf(requests));
+        } else {
+            seckillStockShards.initStock(voucherId, requests, shards);
+        }
+        try {
+            CountDownLatch latch = new CountDownLatch(requests);
+            AtomicInteger success = new AtomicInteger();
+            for (int i = 0; i < requests; i++) {
+                long userId = i;
+                es.submit(() -> {
+                    try {
+                        if (acquire(voucherId, userId, shards) == 0) {
+                            success.incrementAndGet();
+                        }
+                    } finally {
+                        latch.countDown();
+                    }
+                });
+            }
+            latch.await();
+            return success.get();
+        } finally {
+            //清理测试数据
+            if (shards == 1) {
+                stringRedisTemplate.delete(Arrays.asList(SeckillStockShards.stockKey(voucherId), SeckillStockShards.orderKey(voucherId)));
+            } else {
+                for (int i = 0; i < shards; i++) {
+                    stringRedisTemplate.delete(Arrays.asList(SeckillStockShards.stockKey(voucherId, i), SeckillStockShards.orderKey(voucherId, i)));
+                }
+            }
+        }
+    }
+
+    private int acquire(long voucherId, long userId, int shards) {
+        if (shards > 1) {
+            return seckillStockShards.tryAcquire(voucherId, userId, shards);
+        }
+        Long result = stringRedisTemplate.execute(SECKILL_SCRIPT,
+                Arrays.asList(SeckillStockShards.stockKey(voucherId), SeckillStockShards.orderKey(voucherId),
+                        SeckillWindows.windowKey(voucherId)),
+                String.valueOf(userId));
+        return result.intValue();
+    }
+
+    /**
+     * 并发保存订单：库存10，50个用户，每个用户的订单消息重复投递3次，一半逐条保存、一半和其他用户的订单一起批量保存
+     * 最终应该正好保存10个订单，每个用户最多一个，库存扣到0，不会超卖也不会重复下单
+     */
+    @Test
+    void testConcurrentOrdersNoOversellNoDuplicate() throws InterruptedException {
+        int stock = 10;
+        int users = 50;
+        int deliveries = 3;
+        long voucherId = System.currentTimeMillis();
+        seckillVoucherService.save(new SeckillVoucher().setVoucherId(voucherId).setStock(stock).setStockShards(1));
+        try {
+            CountDownLatch latch = new CountDownLatch(users * deliveries);
+            for (int d = 0; d < deliveries; d++) {
+                for (int u = 0; u < users; u++) {
+                    long userId = voucherId * 100 + u;
+                    VoucherOrder order = new VoucherOrder().setId(redisIdWorker.nextId("order"))
+                            .setUserId(userId).setVoucherId(voucherId);
+                    boolean batch = u % 2 == 0;
+                    es.submit(() -> {
+                        try {
+                            if (batch) {
+                                //和另一个用户的订单组成一批，库存不足时整批失败，拆开后逐条重试
+                                VoucherOrder other = new VoucherOrder().setId(redisIdWorker.nextId("order"))
+                                        .setUserId(userId + 1).setVoucherId(voucherId);
+                                List<VoucherOrder> orders = new ArrayList<>(Arrays.asList(order, other));
+                                try {
+                                    voucherOrderService.createVoucherOrders(orders);
+                                } catch (IllegalStateException e) {
+                                    orders.forEach(voucherOrderService::creatVoucherOrder);
+                                }
+                            } else {
+                                voucherOrderService.creatVoucherOrder(order);
+                            }
+                        } finally {
+                            latch.countDown();
+                        }
+                    });
+                }
+            }
+            latch.await();
+            List<VoucherOrder> orders = voucherOrderService.query().eq("voucher_id", voucherId).list();
+            assertEquals(stock, orders.size());
+            assertEquals(stock, orders.stream().map(VoucherOrder::getUserId).distinct().count());
+            assertEquals(0, seckillVoucherService.getById(voucherId).getStock());
+        } finally {
+            //清理测试数据
+            voucherOrderService.update().eq("voucher_id", voucherId).remove();
+            seckillVoucherService.removeById(voucherId);
+        }
+    }
 }
@@ -0,0 +1,115 @@
+package com.hmdp.utils;
+
+import com.hmdp.entity.Shop;
+import org.junit.jupiter.api.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class CacheSerializerTest {
+
+    private final CacheSerializer serializer = new CacheSerializer("smile", 64);
+
+    @Test
+    void roundTripIsDecodable() {
+        Shop shop = new Shop().setId(1L).setName("店铺").setAddress(repeat("地址", 100));
+        byte[] bytes = serializer.writeLogical(shop, 123L, 5, 7L);
+        assertTrue(serializer.canDecode(bytes));
+        RedisData redisData = serializer.readLogical(bytes, Shop.class);
+        assertEquals(123L, redisData.getExpireTime());
+        assertEquals(5, redisData.getRebuildCost());
+        assertEquals(7L, redisData.getVersion());
+        assertEquals(shop.getAddress(), ((Shop) redisData.getData()).getAddress());
+    }
+
+    @Test
+    void unknownCodecIsNotDecodable() {
+        byte[] bytes = serializer.write(new Shop().setId(1L).setName("店铺"), 1L);
+        bytes[2] = 9;
+        assertFalse(serializer.canDecode(bytes));
+        bytes[2] = -1;
+        assertFalse(serializer.canDecode(bytes));
+        assertThrows(IllegalArgumentException.class, () -> serializer.read(bytes, Shop.class));
+    }
+
+    @Test
+    void unknownFlagsOrTruncatedDataAreNotDecodable() {
+        //不压缩时原始长度必须和数据长度一致
+        byte[] bytes = new CacheSerializer("smile", Integer.MAX_VALUE).write(new Shop().setId(1L).setName("店铺"), 1L);
+        byte[] flagged = bytes.clone();
+        flagged[1] = 4;
+        assertFalse(serializer.canDecode(flagged));
+        assertFalse(serializer.canDecode(Arrays.copyOf(bytes, bytes.length - 1)));
+    }
+
+    @Test
+    void compressedRawLengthIsBounded() {
+        Shop shop = new Shop().setId(1L).setName("店铺").setAddress(repeat("地址", 100));
+        byte[] bytes = serializer.write(shop, 1L);
+        //确认数据被压缩
+        assertEquals(1, bytes[1]);
+        assertTrue(serializer.canDecode(bytes));
+        int payloadLength = bytes.length - CacheSerializer.HEADER_LENGTH;
+        assertFalse(serializer.canDecode(withRawLength(bytes, payloadLength * 255 + 1)));
+        assertFalse(serializer.canDecode(withRawLength(bytes, Integer.MAX_VALUE)));
+        assertFalse(serializer.canDecode(withRawLength(bytes, 0)));
+        assertFalse(serializer.canDecode(Arrays.copyOf(bytes, CacheSerializer.HEADER_LENGTH)));
+    }
+
+    @Test
+    void version1IsDecodable() {
+        Shop shop = new Shop().setId(1L).setName("店铺");
+        byte[] raw = new SmileCacheCodec().encode(shop);
+        byte[] bytes = ByteBuffer.allocate(15 + raw.length)
+                .put(CacheSerializer.FORMAT_VERSION_1).put((byte) 0).put(SmileCacheCodec.ID)
+                .putLong(123L).putInt(raw.length).put(raw).array();
+        assertTrue(serializer.canDecode(bytes));
+        assertEquals(123L, serializer.expireTimeOf(bytes));
+        assertEquals("店铺", serializer.read(bytes, Shop.class).getName());
+        RedisData redisData = serializer.readLogical(bytes, Shop.class);
+        assertEquals(123L, redisData.getExpireTime());
+        assertEquals("店铺", ((Shop) redisData.getData()).getName());
+    }
+
+    @Test
+    void version2IsDecodable() {
+        Shop shop = new Shop().setId(1L).setName("店铺");
+        byte[] raw = new SmileCacheCodec().encode(shop);
+        byte[] bytes = ByteBuffer.allocate(19 + raw.length)
+                .put(CacheSerializer.FORMAT_VERSION_2).put((byte) 0).put(SmileCacheCodec.ID)
+                .putLong(123L).putInt(5).putInt(raw.length).put(raw).array();
+        assertTrue(serializer.canDecode(bytes));
+        assertEquals(123L, serializer.expireTimeOf(bytes));
+        assertEquals("店铺", serializer.read(bytes, Shop.class).getName());
+        RedisData redisData = serializer.readLogical(bytes, Shop.class);
+        assertEquals(123L, redisData.getExpireTime());
+        assertEquals(5, redisData.getRebuildCost());
+        assertEquals("店铺", ((Shop) redisData.getData()).getName());
+        //原始长度和数据长度不一致
+        assertFalse(serializer.canDecode(Arrays.copyOf(bytes, bytes.length - 1)));
+    }
+
+    @Test
+    void legacyJsonIsDecodable() {
+        byte[] bytes = "{\"id\":1,\"name\":\"店铺\"}".getBytes(StandardCharsets.UTF_8);
+        assertTrue(serializer.canDecode(bytes));
+        assertEquals("店铺", serializer.read(bytes, Shop.class).getName());
+    }
+
+    private static byte[] withRawLength(byte[] bytes, int rawLength) {
+        byte[] copy = bytes.clone();
+        ByteBuffer.wrap(copy).putInt(CacheSerializer.HEADER_LENGTH - 4, rawLength);
+        return copy;
+    }
+
+    private static String repeat(String s, int times) {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < times; i++) {
+            sb.append(s);
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,88 @@
+package com.hmdp.utils;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class HierarchicalTimingWheelTest {
+
+    private static final long START = 1_000_000_123L;
+
+    @Test
+    void expiredDeadlineIsRejected() {
+        HierarchicalTimingWheel<String> wheel = new HierarchicalTimingWheel<>(100, 10, START);
+        //当前时间按格取整为START - START % 100，不晚于它的都已经到期
+        assertFalse(wheel.add(START - 1000, "past"));
+        assertFalse(wheel.add(START - START % 100, "current time"));
+        assertTrue(wheel.add(START - 1, "later in current tick"));
+        assertTrue(wheel.add(START + 1, "next tick"));
+    }
+
+    @Test
+    void firesWithinOneTickAfterDeadline() {
+        HierarchicalTimingWheel<Long> wheel = new HierarchicalTimingWheel<>(100, 10, START);
+        //第一层、第二层和需要多次降级的第四层
+        long[] deadlines = {START + 150, START + 950, START + 5_432, START + 123_456};
+        for (long deadline : deadlines) {
+            assertTrue(wheel.add(deadline, deadline));
+        }
+        Map<Long, Long> fired = new HashMap<>();
+        for (long now = START; now <= START + 200_000; now += 10) {
+            long time = now;
+            wheel.advance(time, deadline -> assertNull(fired.put(deadline, time)));
+        }
+        for (long deadline : deadlines) {
+            Long time = fired.get(deadline);
+            assertNotNull(time, "没有到期:" + deadline);
+            assertTrue(time >= deadline, "提前到期:" + deadline);
+            assertTrue(time - deadline <= 100, "晚了超过一格:" + deadline);
+        }
+    }
+
+    /**
+     * 随机的到期时间和不均匀的推进间隔，和逐个比较的结果一致：不提前、不遗漏、不重复
+     */
+    @Test
+    void matchesBruteForce() {
+        Random random = new Random(1);
+        long tick = 100;
+        HierarchicalTimingWheel<long[]> wheel = new HierarchicalTimingWheel<>(tick, 10, START);
+        List<long[]> tasks = new ArrayList<>();
+        long now = START;
+        long end = START + 5_000_000;
+        while (now < end) {
+            //边推进边添加，到期时间偏向近处
+            for (int i = 0; i < 20; i++) {
+                long deadline = now + (long) (random.nextDouble() * random.nextDouble() * 5_000_000);
+                long[] task = {deadline, -1};
+                tasks.add(task);
+                if (!wheel.add(deadline, task)) {
+                    task[1] = now;
+                }
+            }
+            now += random.nextInt(500);
+            long time = now;
+            wheel.advance(time, task -> {
+                assertEquals(-1, task[1], "重复到期");
+                task[1] = time;
+            });
+        }
+        for (long time = now; time <= end + 10_000_000; time += 1000) {
+            long t = time;
+            wheel.advance(t, task -> {
+                assertEquals(-1, task[1], "重复到期");
+                task[1] = t;
+            });
+        }
+        for (long[] task : tasks) {
+            assertNotEquals(-1, task[1], "没有到期");
+            assertTrue(task[1] >= task[0], "提前到期");
+        }
+    }
+}
@@ -0,0 +1,89 @@
+package com.hmdp.utils;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class LongHashSetTest {
+
+    @Test
+    void zeroIsStoredSeparately() {
+        LongHashSet set = new LongHashSet();
+        assertFalse(set.contains(0));
+        assertTrue(set.add(0));
+        assertFalse(set.add(0));
+        assertTrue(set.contains(0));
+        assertEquals(1, set.size());
+
+        Set<Long> values = new HashSet<>();
+        set.forEach(values::add);
+        assertEquals(1, values.size());
+        assertTrue(values.contains(0L));
+
+        //0在哪一边都参与差集
+        LongHashSet other = new LongHashSet();
+        other.add(1);
+        assertTrue(set.minus(other).contains(0));
+        assertFalse(set.minus(set).contains(0));
+        assertTrue(other.minus(set).contains(1));
+        assertFalse(other.minus(set).contains(0));
+    }
+
+    @Test
+    void resizeKeepsAllValues() {
+        //从最小容量开始，扩容多次，包括负数、0和哈希后落在同一个位置附近的值
+        LongHashSet set = new LongHashSet(1);
+        Set<Long> expected = new HashSet<>();
+        Random random = new Random(1);
+        for (int i = 0; i < 100_000; i++) {
+            long value;
+            switch (i % 4) {
+                case 0:
+                    value = random.nextLong();
+                    break;
+                case 1:
+                    value = (long) i << 32;
+                    break;
+                case 2:
+                    value = -i;
+                    break;
+                default:
+                    value = random.nextInt(1000);
+            }
+            assertEquals(expected.add(value), set.add(value), "重复判断错误:" + value);
+            assertEquals(expected.size(), set.size());
+        }
+        for (Long value : expected) {
+            assertTrue(set.contains(value), "扩容后丢失:" + value);
+        }
+        for (int i = 0; i < 10_000; i++) {
+            long value = random.nextLong();
+            assertEquals(expected.contains(value), set.contains(value));
+        }
+        Set<Long> iterated = new HashSet<>();
+        set.forEach(value -> assertTrue(iterated.add(value), "重复遍历:" + value));
+        assertEquals(expected, iterated);
+    }
+
+    @Test
+    void minus() {
+        LongHashSet a = new LongHashSet();
+        LongHashSet b = new LongHashSet();
+        for (long i = 0; i < 1000; i++) {
+            a.add(i);
+            if (i % 3 == 0) {
+                b.add(i);
+            }
+        }
+        LongHashSet diff = a.minus(b);
+        assertEquals(1000 - 334, diff.size());
+        for (long i = 0; i < 1000; i++) {
+            assertEquals(i % 3 != 0, diff.contains(i));
+        }
+        assertTrue(b.minus(a).isEmpty());
+    }
+}
@@ -0,0 +1,176 @@
+package com.hmdp.utils;
+
+import com.hmdp.entity.VoucherOrder;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class OrderJournalTest {
+
+    //每条记录41字节，每个文件放3条
+    private static final int RECORD_LENGTH = 41;
+    private static final int SEGMENT_BYTES = RECORD_LENGTH * 3;
+
+    @TempDir
+    Path dir;
+
+    @Test
+    void appendAndDrainInOrder() throws IOException {
+        OrderJournal journal = journal();
+        assertFalse(journal.hasPending());
+        LocalDateTime createTime = LocalDateTime.of(2024, 1, 1, 12, 0, 0, 123_000_000);
+        journal.append(order(1).setCreateTime(createTime));
+        journal.append(order(2).setCreateTime(null));
+        assertTrue(journal.hasPending());
+
+        List<VoucherOrder> sent = new ArrayList<>();
+        journal.drain(sent::add);
+        assertEquals(2, sent.size());
+        assertEquals(1L, sent.get(0).getId());
+        assertEquals(1001L, sent.get(0).getUserId());
+        assertEquals(2001L, sent.get(0).getVoucherId());
+        assertEquals(createTime, sent.get(0).getCreateTime());
+        assertNull(sent.get(1).getCreateTime());
+        assertFalse(journal.hasPending());
+
+        //已经发送的不再发送
+        sent.clear();
+        journal.drain(sent::add);
+        assertTrue(sent.isEmpty());
+        journal.close();
+    }
+
+    @Test
+    void drainStopsAtFailureAndResumes() throws IOException {
+        OrderJournal journal = journal();
+        for (long id = 1; id <= 4; id++) {
+            journal.append(order(id));
+        }
+        List<Long> sent = new ArrayList<>();
+        journal.drain(order -> {
+            if (order.getId() == 3) {
+                throw new IllegalStateException("broker不可用");
+            }
+            sent.add(order.getId());
+        });
+        assertEquals(ids(1, 2), sent);
+        assertTrue(journal.hasPending());
+
+        journal.drain(order -> sent.add(order.getId()));
+        assertEquals(ids(1, 2, 3, 4), sent);
+        assertFalse(journal.hasPending());
+        journal.close();
+    }
+
+    @Test
+    void rotatesSegmentsAndDeletesDrainedOnes() throws IOException {
+        OrderJournal journal = journal();
+        for (long id = 1; id <= 7; id++) {
+            journal.append(order(id));
+        }
+        //启动时创建的文件加上写满后新建的两个文件
+        assertEquals(3, segments().size());
+
+        List<Long> sent = new ArrayList<>();
+        journal.drain(order -> sent.add(order.getId()));
+        assertEquals(ids(1, 2, 3, 4, 5, 6, 7), sent);
+        //发送完的旧文件删除，只留下正在写入的文件
+        assertEquals(1, segments().size());
+
+        journal.close();
+        assertTrue(segments().isEmpty());
+    }
+
+    @Test
+    void recoversPendingRecordsAfterRestart() throws IOException {
+        OrderJournal journal = journal();
+        for (long id = 1; id <= 5; id++) {
+            journal.append(order(id));
+        }
+        journal.drain(order -> {
+            if (order.getId() == 3) {
+                throw new IllegalStateException("broker不可用");
+            }
+        });
+        //模拟进程退出，没有发送的记录保留在文件中
+        journal.close();
+
+        OrderJournal restarted = journal();
+        assertTrue(restarted.hasPending());
+        List<Long> sent = new ArrayList<>();
+        restarted.drain(order -> sent.add(order.getId()));
+        assertEquals(ids(3, 4, 5), sent);
+        assertFalse(restarted.hasPending());
+
+        //重启后新的记录写入新文件
+        restarted.append(order(6));
+        restarted.drain(order -> sent.add(order.getId()));
+        assertEquals(ids(3, 4, 5, 6), sent);
+        restarted.close();
+    }
+
+    @Test
+    void skipsCorruptedRecords() throws IOException {
+        OrderJournal journal = journal();
+        for (long id = 1; id <= 3; id++) {
+            journal.append(order(id));
+        }
+        journal.close();
+        //改坏第二条记录的订单内容，crc不再一致
+        Path segment = segments().get(0);
+        try (RandomAccessFile file = new RandomAccessFile(segment.toFile(), "rw")) {
+            long position = RECORD_LENGTH + 9 + 8;
+            file.seek(position);
+            int b = file.read();
+            file.seek(position);
+            file.write(b ^ 0xFF);
+        }
+
+        SimpleMeterRegistry registry = new SimpleMeterRegistry();
+        OrderJournal restarted = new OrderJournal(registry, dir.toString(), SEGMENT_BYTES, false);
+        List<Long> sent = new ArrayList<>();
+        restarted.drain(order -> sent.add(order.getId()));
+        assertEquals(ids(1, 3), sent);
+        assertFalse(restarted.hasPending());
+        assertEquals(1, registry.counter("order.journal.corrupted").count());
+        restarted.close();
+    }
+
+    private OrderJournal journal() throws IOException {
+        return new OrderJournal(new SimpleMeterRegistry(), dir.toString(), SEGMENT_BYTES, false);
+    }
+
+    private List<Path> segments() throws IOException {
+        try (Stream<Path> files = Files.list(dir)) {
+            return files.sorted().collect(Collectors.toList());
+        }
+    }
+
+    private static VoucherOrder order(long id) {
+        return new VoucherOrder()
+                .setId(id)
+                .setUserId(1000 + id)
+                .setVoucherId(2000 + id)
+                .setCreateTime(LocalDateTime.of(2024, 1, 1, 0, 0));
+    }
+
+    private static List<Long> ids(long... ids) {
+        List<Long> list = new ArrayList<>();
+        for (long id : ids) {
+            list.add(id);
+        }
+        return list;
+    }
+}